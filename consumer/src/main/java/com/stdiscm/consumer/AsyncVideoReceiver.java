@@ -0,0 +1,211 @@
+package com.stdiscm.consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Receiver on asynchronous channels. Connections only hold a thread while bytes are being
+// handled, so thousands of slow uploads share a fixed number of threads.
+public class AsyncVideoReceiver implements UploadReceiver {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncVideoReceiver.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long READ_TIMEOUT_SECONDS = 60;
+
+    private final int port;
+    private final int threads;
+    private final UploadSessionFactory sessionFactory;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private AsynchronousChannelGroup channelGroup;
+    private AsynchronousServerSocketChannel serverChannel;
+
+    public AsyncVideoReceiver(int port, int threads, UploadSessionFactory sessionFactory) {
+        this.port = port;
+        this.threads = threads;
+        this.sessionFactory = sessionFactory;
+    }
+
+    @Override
+    public void run() {
+        try {
+            channelGroup = AsynchronousChannelGroup.withFixedThreadPool(threads, receiverThreadFactory());
+            serverChannel = AsynchronousServerSocketChannel.open(channelGroup).bind(new InetSocketAddress(port));
+            logger.info("AsyncVideoReceiver started on port {} with {} threads", port, threads);
+
+            acceptNext();
+            stopped.await();
+        } catch (IOException e) {
+            logger.error("Error creating server channel", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            shutdownChannelGroup();
+        }
+    }
+
+    private void acceptNext() {
+        serverChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+            @Override
+            public void completed(AsynchronousSocketChannel channel, Void attachment) {
+                acceptNext();
+                try {
+                    new Connection(channel).readNext();
+                } catch (IOException e) {
+                    logger.error("Error handling client connection", e);
+                    closeQuietly(channel);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                if (serverChannel.isOpen()) {
+                    logger.error("Error accepting client connection", e);
+                    acceptNext();
+                }
+            }
+        });
+    }
+
+    // Reads, feeds the session and writes its responses, one step at a time
+    private class Connection {
+        private final AsynchronousSocketChannel channel;
+        private final UploadSession session;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        Connection(AsynchronousSocketChannel channel) throws IOException {
+            SocketAddress remoteAddress = channel.getRemoteAddress();
+            logger.info("Handling connection from {}", remoteAddress);
+            this.channel = channel;
+            this.session = sessionFactory.newSession(remoteAddress);
+            // Idle producer connections are read without a timeout, so a peer that vanished is
+            // left for TCP keepalive to find
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        }
+
+        // The timeout only applies while an upload is open or a frame is half read: persistent
+        // producer connections sit idle for as long as their directories are quiet
+        void readNext() {
+            buffer.clear();
+            CompletionHandler<Integer, Void> handler = new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer read, Void attachment) {
+                    if (read == -1) {
+                        close();
+                        return;
+                    }
+                    try {
+                        buffer.flip();
+                        session.onInput(buffer);
+                        writeOutput();
+                    } catch (IOException e) {
+                        logger.error("Error handling client connection", e);
+                        close();
+                    }
+                }
+
+                @Override
+                public void failed(Throwable e, Void attachment) {
+                    if (e instanceof InterruptedByTimeoutException) {
+                        logger.debug("Connection from {} timed out", session.getRemoteAddress());
+                    } else {
+                        logger.error("Error reading from {}", session.getRemoteAddress(), e);
+                    }
+                    close();
+                }
+            };
+            if (session.isIdle()) {
+                channel.read(buffer, null, handler);
+            } else {
+                channel.read(buffer, READ_TIMEOUT_SECONDS, TimeUnit.SECONDS, null, handler);
+            }
+        }
+
+        void writeOutput() {
+            ByteBuffer output = session.getOutput();
+            if (!output.hasRemaining()) {
+                if (session.isClosed()) {
+                    close();
+                } else {
+                    readNext();
+                }
+                return;
+            }
+            channel.write(output, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer written, Void attachment) {
+                    writeOutput();
+                }
+
+                @Override
+                public void failed(Throwable e, Void attachment) {
+                    logger.error("Error writing to {}", session.getRemoteAddress(), e);
+                    close();
+                }
+            });
+        }
+
+        void close() {
+            session.close();
+            closeQuietly(channel);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error closing server channel", e);
+        }
+        stopped.countDown();
+    }
+
+    private void shutdownChannelGroup() {
+        if (channelGroup != null) {
+            channelGroup.shutdown();
+            try {
+                if (!channelGroup.awaitTermination(5, TimeUnit.SECONDS)) {
+                    channelGroup.shutdownNow();
+                }
+            } catch (IOException e) {
+                logger.error("Error shutting down receiver threads", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void closeQuietly(AsynchronousSocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error closing client channel", e);
+        }
+    }
+
+    private static ThreadFactory receiverThreadFactory() {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+        return runnable -> {
+            Thread thread = defaultFactory.newThread(runnable);
+            thread.setName("receiver-" + counter.incrementAndGet());
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,361 @@
+package com.stdiscm.consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// Keeps the video catalog on disk: an append-only log of added videos plus a snapshot of the whole
+// catalog that the log is folded into from time to time. Every record is [length][crc32][payload],
+// so a record torn by a crash is detected and dropped during recovery.
+//
+// Appends are group committed: callers hand their record to a single writer thread and wait, and
+// the writer writes everything that piled up during the previous fsync with one write and one fsync.
+// Snapshots are written from the records the log holds, never from the live catalog, which callers
+// may change before or after their record is durable.
+public class CatalogLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(CatalogLog.class);
+    private static final String SNAPSHOT_FILE = "catalog.snapshot";
+    private static final String LOG_FILE = "catalog.log";
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+
+    private final Path snapshotPath;
+    private final Path logPath;
+    private final int snapshotEvery;   // Log records that trigger a new snapshot, at the least
+    private int snapshotRecords;
+    private FileChannel logChannel;
+    private int logRecords;
+    // The latest durable record of every video; filled by recover(), then only touched by the writer
+    private final Map<String, VideoMetadata> applied = new LinkedHashMap<>();
+    private Thread writer;
+
+    // Guarded by this
+    private Batch pending = new Batch();
+    private boolean closed;
+    // Only touched by the writer; set when a failed batch could not be cut off the log again
+    private IOException broken;
+
+    public CatalogLog(Path directory, int snapshotEvery) throws IOException {
+        Files.createDirectories(directory);
+        this.snapshotPath = directory.resolve(SNAPSHOT_FILE);
+        this.logPath = directory.resolve(LOG_FILE);
+        this.snapshotEvery = snapshotEvery;
+    }
+
+    // Loads the snapshot and replays the log after it, handing each video to the consumer in the
+    // order it was added. A torn record at the end of the log is cut off.
+    public void recover(Consumer<VideoMetadata> consumer) throws IOException {
+        Consumer<VideoMetadata> apply = video -> {
+            applied.put(video.getId(), video);
+            consumer.accept(video);
+        };
+        int loaded = 0;
+        if (Files.exists(snapshotPath)) {
+            try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+                snapshotRecords = readRecords(channel, apply);
+                loaded += snapshotRecords;
+            }
+        }
+
+        logChannel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        logRecords = readRecords(logChannel, apply);
+        loaded += logRecords;
+        if (logChannel.position() < logChannel.size()) {
+            logger.warn("Dropping {} bytes of incomplete catalog log records", logChannel.size() - logChannel.position());
+            logChannel.truncate(logChannel.position());
+        }
+        logger.info("Recovered {} catalog records ({} from the log)", loaded, logRecords);
+    }
+
+    public void start() {
+        writer = new Thread(this::writeLoop, "catalog-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Returns once the record is on disk, together with any others that came in meanwhile, and
+    // throws if it could not be written
+    public void append(VideoMetadata video) throws IOException, InterruptedException {
+        byte[] record = encode(video);
+        Batch batch;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Catalog log is closed");
+            }
+            batch = pending;
+            batch.videos.add(video);
+            batch.records.add(record);
+            notifyAll();
+            // The writer drains everything appended before close, so every batch gets an outcome
+            while (!batch.done) {
+                wait();
+            }
+        }
+        if (batch.failure != null) {
+            throw new IOException("Failed to write catalog record for " + video.getId(), batch.failure);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (writer != null) {
+            try {
+                writer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            if (logChannel != null) {
+                logChannel.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Error closing catalog log", e);
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Batch batch;
+            synchronized (this) {
+                while (pending.records.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.records.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new Batch();
+            }
+
+            IOException failure = null;
+            try {
+                writeBatch(batch);
+            } catch (IOException e) {
+                // The videos stay in the catalog, but their callers learn they are not durable
+                logger.error("Error writing {} catalog records", batch.records.size(), e);
+                failure = e;
+            }
+            synchronized (this) {
+                batch.failure = failure;
+                batch.done = true;
+                notifyAll();
+            }
+
+            // A snapshot rewrites the whole catalog, so let the log grow with it to keep that cheap
+            if (logRecords >= Math.max(snapshotEvery, snapshotRecords / 4)) {
+                try {
+                    writeSnapshot();
+                } catch (IOException e) {
+                    logger.error("Error writing catalog snapshot", e);
+                }
+            }
+        }
+    }
+
+    // A batch that fails is cut off again, so no torn record is left for the ones after it to sit
+    // behind, which recovery would drop along with it
+    private void writeBatch(Batch batch) throws IOException {
+        if (broken != null) {
+            throw new IOException("Catalog log could not be repaired after an earlier failure", broken);
+        }
+        long start = logChannel.position();
+        try {
+            writeRecords(batch.records);
+        } catch (IOException e) {
+            try {
+                logChannel.truncate(start);
+                logChannel.position(start);
+            } catch (IOException truncateError) {
+                logger.error("Failed to cut a failed batch off the catalog log", truncateError);
+                broken = truncateError;
+            }
+            throw e;
+        }
+        logRecords += batch.records.size();
+        for (VideoMetadata video : batch.videos) {
+            applied.put(video.getId(), video);
+        }
+    }
+
+    private void writeRecords(List<byte[]> batch) throws IOException {
+        int bytes = 0;
+        for (byte[] record : batch) {
+            bytes += record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        for (byte[] record : batch) {
+            buffer.put(record);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            logChannel.write(buffer);
+        }
+        logChannel.force(false);
+    }
+
+    // Writes the latest record of every video to a new snapshot, then empties the log. This runs on
+    // the writer, so the snapshot holds exactly what the log did and nothing is lost by emptying it;
+    // appends that come in meanwhile wait for the new log.
+    private void writeSnapshot() throws IOException {
+        long start = System.currentTimeMillis();
+        Path tempPath = snapshotPath.resolveSibling(SNAPSHOT_FILE + ".tmp");
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     Channels.newOutputStream(channel), 256 * 1024))) {
+            for (VideoMetadata video : applied.values()) {
+                out.write(encode(video));
+                count++;
+            }
+            out.flush();
+            channel.force(false);
+        }
+        Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        logChannel.truncate(0);
+        logChannel.position(0);
+        logChannel.force(false);
+        logRecords = 0;
+        snapshotRecords = count;
+        logger.info("Wrote catalog snapshot of {} videos in {} ms", count, System.currentTimeMillis() - start);
+    }
+
+    // Reads records until the end of the channel or the first damaged one, leaving the channel
+    // positioned after the last good record. The file is mapped and decoded in place, which keeps
+    // recovery of a large catalog well under a second.
+    private static int readRecords(FileChannel channel, Consumer<VideoMetadata> consumer) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Catalog file too large to map: " + size + " bytes");
+        }
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        CRC32 crc = new CRC32();
+        int count = 0;
+        while (buffer.remaining() >= 8) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > MAX_RECORD_BYTES || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+            ByteBuffer payload = buffer.slice();
+            payload.limit(length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                buffer.position(start);
+                break;
+            }
+            consumer.accept(decode(payload));
+            buffer.position(start + 8 + length);
+            count++;
+        }
+        channel.position(buffer.position());
+        return count;
+    }
+
+    private static byte[] encode(VideoMetadata video) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeUTF(video.getId());
+        out.writeUTF(video.getFileName());
+        writeNullable(out, video.getFilePath());
+        writeNullable(out, video.getThumbnailPath());
+        writeNullable(out, video.getPreviewPath());
+        out.writeLong(video.getFileSize());
+        out.writeLong(video.getUploadTime().toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(video.getUploadTime().getNano());
+        out.writeBoolean(video.isTranscoded());
+
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, record.capacity() - 8);
+        record.putInt(0, record.capacity() - 8);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    private static VideoMetadata decode(ByteBuffer payload) throws IOException {
+        String id = readUTF(payload);
+        String fileName = readUTF(payload);
+        String filePath = readNullable(payload);
+        String thumbnailPath = readNullable(payload);
+        String previewPath = readNullable(payload);
+        long fileSize = payload.getLong();
+        LocalDateTime uploadTime = LocalDateTime.ofEpochSecond(payload.getLong(), payload.getInt(), ZoneOffset.UTC);
+        // Records written before deferred transcoding existed end here, and were all transcoded
+        boolean transcoded = !payload.hasRemaining() || payload.get() != 0;
+        return new VideoMetadata(id, fileName, filePath, thumbnailPath, previewPath, fileSize, uploadTime,
+                transcoded);
+    }
+
+    // Reads a string written by DataOutputStream.writeUTF(); plain ASCII, by far the common case
+    // for paths, skips the modified UTF-8 decoder
+    private static String readUTF(ByteBuffer payload) throws IOException {
+        int length = Short.toUnsignedInt(payload.getShort());
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        for (byte b : bytes) {
+            if (b <= 0) {
+                ByteBuffer encoded = ByteBuffer.allocate(2 + length).putShort((short) length).put(bytes);
+                return new DataInputStream(new ByteArrayInputStream(encoded.array())).readUTF();
+            }
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(ByteBuffer payload) throws IOException {
+        return payload.get() != 0 ? readUTF(payload) : null;
+    }
+
+    // Records appended while the previous batch was being written, and how their write went
+    private static class Batch {
+        final List<VideoMetadata> videos = new ArrayList<>();
+        final List<byte[]> records = new ArrayList<>();
+        boolean done;
+        IOException failure;
+    }
+}
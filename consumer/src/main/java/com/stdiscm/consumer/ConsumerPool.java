@@ -0,0 +1,217 @@
+package com.stdiscm.consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+// The VideoConsumer threads, resized at run time between a minimum and a maximum. Each encode
+// already spreads over several cores inside FFmpeg, so the best number of consumers depends on
+// the machine and the videos rather than on a fixed setting.
+//
+// autoscale() is called periodically. It adds a consumer while videos are waiting, every consumer
+// is busy and the CPU has room to spare, then checks a few periods later whether the bytes
+// transcoded per second actually went up; if not, the consumer is taken away again and growth
+// pauses for a while. Consumers are also taken away when the queue has been empty with some of them
+// idle for several periods in a row, or when the CPU has been saturated for a minute without
+// throughput going up: a box busy encoding is normally near 100%, so saturation alone says nothing. Bytes count as the encoders
+// get through their input, so a trial shorter than one video still sees the change.
+public class ConsumerPool {
+    private static final Logger logger = LoggerFactory.getLogger(ConsumerPool.class);
+
+    private static final double GROW_BELOW_CPU = 0.80;
+    private static final double SHRINK_ABOVE_CPU = 0.95;
+    private static final double MIN_GAIN = 1.05;       // Throughput a new consumer has to add, relatively
+    private static final int JUDGE_PERIODS = 3;        // Periods before a new consumer is judged
+    private static final int COOLDOWN_PERIODS = 6;     // Periods without growth after a change that did not help
+    private static final int IDLE_PERIODS = 3;
+    private static final int SATURATED_PERIODS = 6;    // Periods of saturated CPU before shrinking for it
+
+    private final IntFunction<VideoConsumer> factory;
+    private final VideoScheduler videoQueue;
+    private final int minThreads;
+    private final int maxThreads;
+    private final ExecutorService executor;
+    private final List<VideoConsumer> consumers = new CopyOnWriteArrayList<>();   // Not stopped
+    private final List<VideoConsumer> running = new CopyOnWriteArrayList<>();     // Threads still alive
+    private final AtomicLong exitedBytes = new AtomicLong();                      // From threads that ended
+    private int nextId;
+
+    // Only touched by autoscale()
+    private long lastBytes;
+    private long lastNanos;
+    private double averageRate = -1;   // Bytes per second, smoothed over recent periods
+    private double rateBeforeGrowth;
+    private long bytesAtGrowth;
+    private long nanosAtGrowth;
+    private int judgePeriods;          // Counting down while a new consumer is on trial
+    private int cooldownPeriods;
+    private int idlePeriods;
+    private int saturatedPeriods;
+    private double rateAtSaturation;   // Average rate when the current stretch of saturation began
+
+    public ConsumerPool(IntFunction<VideoConsumer> factory, VideoScheduler videoQueue, int minThreads,
+                        int maxThreads) {
+        this.factory = factory;
+        this.videoQueue = videoQueue;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> new Thread(r, "consumer-" + count.incrementAndGet()));
+    }
+
+    public synchronized void start(int threads) {
+        for (int i = 0; i < Math.max(minThreads, Math.min(maxThreads, threads)); i++) {
+            addConsumer();
+        }
+        lastBytes = getProcessedBytes();
+        lastNanos = System.nanoTime();
+        // The load is measured between calls, so the first one only sets the starting point
+        getCpuLoad();
+    }
+
+    public int size() {
+        return consumers.size();
+    }
+
+    public synchronized void autoscale() {
+        long now = System.nanoTime();
+        long bytes = getProcessedBytes();
+        double rate = (bytes - lastBytes) * 1e9 / Math.max(1, now - lastNanos);
+        averageRate = averageRate < 0 ? rate : (averageRate * 2 + rate) / 3;
+        lastBytes = bytes;
+        lastNanos = now;
+
+        int size = consumers.size();
+        int busy = 0;
+        for (VideoConsumer consumer : consumers) {
+            if (consumer.isBusy()) {
+                busy++;
+            }
+        }
+        int backlog = videoQueue.size();
+        double cpu = getCpuLoad();
+        if (cooldownPeriods > 0) {
+            cooldownPeriods--;
+        }
+        if (cpu <= SHRINK_ABOVE_CPU) {
+            saturatedPeriods = 0;
+        } else if (saturatedPeriods++ == 0) {
+            rateAtSaturation = averageRate;
+        }
+
+        if (judgePeriods > 0) {
+            if (--judgePeriods == 0 && backlog > 0) {
+                // With an empty queue the rate only shows how fast videos arrive, so there is nothing to judge
+                double rateSinceGrowth = (bytes - bytesAtGrowth) * 1e9 / Math.max(1, now - nanosAtGrowth);
+                if (rateSinceGrowth < rateBeforeGrowth * MIN_GAIN && size > minThreads) {
+                    logger.info("Consumer {} did not raise throughput ({} -> {} bytes/s), removing it",
+                            size, Math.round(rateBeforeGrowth), Math.round(rateSinceGrowth));
+                    removeConsumer();
+                    cooldownPeriods = COOLDOWN_PERIODS;
+                }
+            }
+        } else if (saturatedPeriods >= SATURATED_PERIODS && averageRate <= rateAtSaturation
+                && cooldownPeriods == 0 && size > minThreads) {
+            logger.info("CPU at {}% for {} periods without throughput going up, going down to {} consumers",
+                    Math.round(cpu * 100), saturatedPeriods, size - 1);
+            removeConsumer();
+            cooldownPeriods = COOLDOWN_PERIODS;
+            saturatedPeriods = 0;
+        } else if (backlog > 0 && busy == size && cpu < GROW_BELOW_CPU && size < maxThreads && cooldownPeriods == 0) {
+            logger.info("{} videos waiting with CPU at {}%, going up to {} consumers",
+                    backlog, Math.round(cpu * 100), size + 1);
+            rateBeforeGrowth = averageRate;
+            bytesAtGrowth = bytes;
+            nanosAtGrowth = now;
+            judgePeriods = JUDGE_PERIODS;
+            addConsumer();
+        }
+
+        if (backlog == 0 && busy < size) {
+            if (++idlePeriods >= IDLE_PERIODS && size > minThreads) {
+                logger.info("Queue empty, going down to {} consumers", size - 1);
+                removeConsumer();
+                idlePeriods = 0;
+                judgePeriods = 0;
+            }
+        } else {
+            idlePeriods = 0;
+        }
+    }
+
+    // Stops every consumer, letting current videos finish for up to the given time
+    public void shutdown(long timeoutMillis) {
+        for (VideoConsumer consumer : consumers) {
+            consumer.stop();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void addConsumer() {
+        VideoConsumer consumer = factory.apply(++nextId);
+        consumers.add(consumer);
+        running.add(consumer);
+        executor.submit(() -> {
+            try {
+                consumer.run();
+            } finally {
+                // Together, so that autoscale() never counts these bytes twice or not at all
+                synchronized (this) {
+                    exitedBytes.addAndGet(consumer.getProcessedBytes());
+                    running.remove(consumer);
+                }
+            }
+        });
+    }
+
+    // Stops an idle consumer if there is one, otherwise the newest, which finishes its video first
+    private void removeConsumer() {
+        VideoConsumer victim = consumers.get(consumers.size() - 1);
+        for (VideoConsumer consumer : consumers) {
+            if (!consumer.isBusy()) {
+                victim = consumer;
+            }
+        }
+        consumers.remove(victim);
+        victim.stop();
+    }
+
+    private long getProcessedBytes() {
+        long bytes = exitedBytes.get();
+        for (VideoConsumer consumer : running) {
+            bytes += consumer.getProcessedBytes();
+        }
+        return bytes;
+    }
+
+    // System-wide CPU use between 0 and 1, encodes in other processes included
+    private static double getCpuLoad() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) os).getCpuLoad();
+            if (load >= 0) {
+                return load;
+            }
+        }
+        double average = os.getSystemLoadAverage();
+        return average < 0 ? 0 : Math.min(1, average / os.getAvailableProcessors());
+    }
+}
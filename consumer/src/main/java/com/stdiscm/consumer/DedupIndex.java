@@ -0,0 +1,357 @@
+package com.stdiscm.consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Content hashes of every video the consumer has published, plus the uploads currently in
+// progress. Published hashes are kept as 16-byte keys in an open-addressing table inside a memory-mapped file,
+// so they survive restarts, cost 16 bytes each and need no loading at startup. Reservations only
+// matter while a connection is open, so they are kept in memory.
+//
+// An upload reserves its hash when it is admitted and keeps the reservation through the queue and
+// processing. The hash is committed once the video is in the catalog, and released if the upload
+// or its processing fails, so two connections can never both be accepted for the same content and
+// a video lost before publishing can be uploaded again.
+public class DedupIndex implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DedupIndex.class);
+
+    public enum State { ABSENT, RESERVED, COMMITTED }
+
+    private static final long INITIAL_CAPACITY = 1 << 20;  // Slots; 16 MB, allocated sparsely
+    private static final double MAX_LOAD = 0.7;
+
+    private final Path indexPath;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Set<Key> reserved = ConcurrentHashMap.newKeySet();
+    private Table table;
+
+    public DedupIndex(Path indexPath) throws IOException {
+        this.indexPath = indexPath;
+        if (Files.exists(indexPath)) {
+            table = Table.open(indexPath);
+            if (table == null) {
+                logger.warn("Dedup index {} is unreadable, starting a new one", indexPath);
+            }
+        }
+        if (table == null) {
+            table = Table.create(indexPath, INITIAL_CAPACITY);
+        }
+        logger.info("Dedup index {} opened with {} hashes", indexPath, table.count);
+    }
+
+    public State lookup(String fileHash) {
+        Key key = Key.of(fileHash);
+        lock.readLock().lock();
+        try {
+            if (table.contains(key)) {
+                return State.COMMITTED;
+            }
+            return reserved.contains(key) ? State.RESERVED : State.ABSENT;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Reserves the hash if nobody has it and returns ABSENT; otherwise returns who does
+    public State reserve(String fileHash) {
+        Key key = Key.of(fileHash);
+        lock.writeLock().lock();
+        try {
+            if (table.contains(key)) {
+                return State.COMMITTED;
+            }
+            return reserved.add(key) ? State.ABSENT : State.RESERVED;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Turns a reservation into a permanent entry
+    public void commit(String fileHash) throws IOException {
+        Key key = Key.of(fileHash);
+        lock.writeLock().lock();
+        try {
+            if (table.count + 1 > table.capacity * MAX_LOAD) {
+                grow();
+            }
+            table.insert(key);
+            reserved.remove(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void release(String fileHash) {
+        reserved.remove(Key.of(fileHash));
+    }
+
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return table.count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Commits are in the page cache as soon as they are made, so they survive the process dying;
+    // this pushes them to disk as well
+    public void flush() {
+        lock.readLock().lock();
+        try {
+            table.force();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            table.force();
+            table.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Rehashes into a table twice the size, built next to the current one and moved over it
+    private void grow() throws IOException {
+        Path tempPath = Paths.get(indexPath + ".tmp");
+        Table larger = Table.create(tempPath, table.capacity * 2);
+        try {
+            table.copyTo(larger);
+            larger.force();
+        } catch (RuntimeException e) {
+            larger.close();
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+        table.close();
+        Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        table = larger;
+        logger.info("Dedup index grown to {} slots", table.capacity);
+    }
+
+    // 16 bytes of an MD5 digest. Hashes that are not hex MD5s (e.g. from older producers) are
+    // digested themselves to get a key of the same size.
+    private static class Key {
+        final long high;
+        final long low;
+
+        Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        static Key of(String fileHash) {
+            if (fileHash.length() == 32 && UploadSession.isResumableHash(fileHash)) {
+                return new Key(Long.parseUnsignedLong(fileHash.substring(0, 16), 16),
+                        Long.parseUnsignedLong(fileHash.substring(16), 16));
+            }
+            try {
+                ByteBuffer digest = ByteBuffer.wrap(MessageDigest.getInstance("MD5")
+                        .digest(fileHash.getBytes(StandardCharsets.UTF_8)));
+                return new Key(digest.getLong(), digest.getLong());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        boolean isZero() {
+            return high == 0 && low == 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return high == other.high && low == other.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high ^ low);
+        }
+    }
+
+    // The file is a 64-byte header followed by capacity slots of 16 bytes, linearly probed. An
+    // all-zero slot is empty, so the all-zero key is tracked by a flag in the header instead. The
+    // slots are mapped in 1 GB segments to stay below the 2 GB limit of a single mapping.
+    private static class Table implements Closeable {
+        private static final int MAGIC = 0x44445831;  // "DDX1"
+        private static final int HEADER_BYTES = 64;
+        private static final int SLOT_BYTES = 16;
+        private static final int SEGMENT_SHIFT = 26;
+        private static final long SEGMENT_SLOTS = 1L << SEGMENT_SHIFT;
+        private static final int CAPACITY_OFFSET = 8;
+        private static final int COUNT_OFFSET = 16;
+        private static final int ZERO_KEY_OFFSET = 24;
+
+        private final FileChannel channel;
+        private final MappedByteBuffer header;
+        private final MappedByteBuffer[] segments;
+        final long capacity;
+        long count;
+
+        private Table(FileChannel channel, long capacity) throws IOException {
+            this.channel = channel;
+            this.capacity = capacity;
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            int segmentCount = (int) ((capacity + SEGMENT_SLOTS - 1) >>> SEGMENT_SHIFT);
+            this.segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long slots = Math.min(SEGMENT_SLOTS, capacity - i * SEGMENT_SLOTS);
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_BYTES + i * SEGMENT_SLOTS * SLOT_BYTES, slots * SLOT_BYTES);
+            }
+        }
+
+        static Table create(Path path, long capacity) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                Table table = new Table(channel, capacity);
+                table.header.putLong(CAPACITY_OFFSET, capacity);
+                table.header.putInt(0, MAGIC);
+                return table;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        // Returns null if the file is not a complete index
+        static Table open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                long size = channel.size();
+                if (size >= HEADER_BYTES) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                    channel.read(header, 0);
+                    long capacity = header.getLong(CAPACITY_OFFSET);
+                    if (header.getInt(0) == MAGIC && capacity > 0 && Long.bitCount(capacity) == 1
+                            && size == HEADER_BYTES + capacity * SLOT_BYTES) {
+                        Table table = new Table(channel, capacity);
+                        table.count = header.getLong(COUNT_OFFSET);
+                        return table;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            channel.close();
+            return null;
+        }
+
+        boolean contains(Key key) {
+            if (key.isZero()) {
+                return header.get(ZERO_KEY_OFFSET) != 0;
+            }
+            for (long slot = firstSlot(key); ; slot = (slot + 1) & (capacity - 1)) {
+                long high = getHigh(slot);
+                long low = getLow(slot);
+                if (high == 0 && low == 0) {
+                    return false;
+                }
+                if (high == key.high && low == key.low) {
+                    return true;
+                }
+            }
+        }
+
+        void insert(Key key) {
+            if (key.isZero()) {
+                if (header.get(ZERO_KEY_OFFSET) == 0) {
+                    header.put(ZERO_KEY_OFFSET, (byte) 1);
+                    header.putLong(COUNT_OFFSET, ++count);
+                }
+                return;
+            }
+            for (long slot = firstSlot(key); ; slot = (slot + 1) & (capacity - 1)) {
+                long high = getHigh(slot);
+                long low = getLow(slot);
+                if (high == key.high && low == key.low) {
+                    return;
+                }
+                if (high == 0 && low == 0) {
+                    segment(slot).putLong(offset(slot), key.high).putLong(offset(slot) + 8, key.low);
+                    header.putLong(COUNT_OFFSET, ++count);
+                    return;
+                }
+            }
+        }
+
+        void copyTo(Table other) {
+            if (header.get(ZERO_KEY_OFFSET) != 0) {
+                other.insert(new Key(0, 0));
+            }
+            for (long slot = 0; slot < capacity; slot++) {
+                long high = getHigh(slot);
+                long low = getLow(slot);
+                if (high != 0 || low != 0) {
+                    other.insert(new Key(high, low));
+                }
+            }
+        }
+
+        void force() {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            header.force();
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Error closing dedup index", e);
+            }
+        }
+
+        // Keys are digests, so their bits are already evenly spread
+        private long firstSlot(Key key) {
+            return key.high & (capacity - 1);
+        }
+
+        private long getHigh(long slot) {
+            return segment(slot).getLong(offset(slot));
+        }
+
+        private long getLow(long slot) {
+            return segment(slot).getLong(offset(slot) + 8);
+        }
+
+        private MappedByteBuffer segment(long slot) {
+            return segments[(int) (slot >>> SEGMENT_SHIFT)];
+        }
+
+        private int offset(long slot) {
+            return (int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_BYTES;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.stdiscm.consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Videos published with the upload as received, waiting to be transcoded. With lazy transcoding
+// on, uploads are published as soon as their images are written, and consumers transcode them
+// whenever there are no new uploads to take. A transcode that is running when uploads arrive gives
+// way to them, one consumer at a time, and starts over later.
+//
+// A video someone starts watching does not wait for the queue to empty: one consumer at a time
+// takes such a video before its next upload, and that transcode never gives way. Once transcoded,
+// the catalog entry is swapped to the new file.
+@Component
+public class DeferredTranscodes {
+    private static final Logger logger = LoggerFactory.getLogger(DeferredTranscodes.class);
+
+    @Autowired
+    private VideoDatabaseService videoDatabaseService;
+
+    @Value("${media.transcode.lazy:false}")
+    private boolean lazy;
+
+    // Guarded by this
+    private final Deque<String> order = new ArrayDeque<>();
+    private final Set<String> pending = new HashSet<>();
+    private final Set<String> running = new HashSet<>();
+    private final Set<String> viewed = new HashSet<>();   // Opened before being transcoded, until that is done
+    private final Set<String> viewedRunning = new HashSet<>();
+    private boolean yieldClaimed;
+
+    // Videos left untranscoded by a previous run are still finished, lazy mode or not
+    @PostConstruct
+    public void recover() {
+        List<VideoMetadata> videos = videoDatabaseService.getAllVideos();
+        // Oldest first
+        for (int i = videos.size() - 1; i >= 0; i--) {
+            if (!videos.get(i).isTranscoded()) {
+                add(videos.get(i));
+            }
+        }
+        if (size() > 0) {
+            logger.info("{} videos still waiting to be transcoded", size());
+        }
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    public synchronized void add(VideoMetadata video) {
+        if (pending.add(video.getId())) {
+            order.addLast(video.getId());
+        }
+    }
+
+    // Called on a view; returns whether the video was still waiting or being transcoded. One that
+    // is already being transcoded keeps going, and from now on does not give way to uploads.
+    public synchronized boolean prioritize(String id) {
+        if (running.contains(id)) {
+            if (viewed.add(id)) {
+                viewedRunning.add(id);
+                logger.info("Video {} was opened while being transcoded, no longer putting it off", id);
+            }
+            return true;
+        }
+        if (!pending.contains(id)) {
+            return false;
+        }
+        if (viewed.add(id)) {
+            order.remove(id);
+            order.addFirst(id);
+            logger.info("Video {} was opened before being transcoded, transcoding it next", id);
+        }
+        return true;
+    }
+
+    public synchronized boolean isViewed(String id) {
+        return viewed.contains(id);
+    }
+
+    // Puts back a video whose transcode was interrupted, to be picked up first
+    public synchronized void retry(VideoMetadata video) {
+        if (pending.add(video.getId())) {
+            order.addFirst(video.getId());
+        }
+    }
+
+    // The next video to transcode, or null if there is none. finished() has to be called for every
+    // video returned once its transcode is over.
+    public VideoMetadata poll() {
+        return take(false);
+    }
+
+    // The next video someone opened, unless one of those is already being transcoded
+    public VideoMetadata pollViewed() {
+        return take(true);
+    }
+
+    public synchronized void finished(String id) {
+        running.remove(id);
+        viewedRunning.remove(id);
+        // One that was put back to start over stays viewed
+        if (!pending.contains(id)) {
+            viewed.remove(id);
+        }
+    }
+
+    // Lets one consumer at a time give way to new uploads, for a video nobody has opened; the claim
+    // holds until that consumer has been back to the upload queue, so the others keep transcoding
+    // meanwhile
+    public synchronized boolean claimYield(String id) {
+        if (yieldClaimed || viewed.contains(id)) {
+            return false;
+        }
+        yieldClaimed = true;
+        return true;
+    }
+
+    public synchronized void releaseYield() {
+        yieldClaimed = false;
+    }
+
+    private VideoMetadata take(boolean viewedOnly) {
+        while (true) {
+            String id = null;
+            synchronized (this) {
+                if (viewedOnly) {
+                    if (!viewedRunning.isEmpty()) {
+                        return null;
+                    }
+                    for (String candidate : order) {
+                        if (viewed.contains(candidate)) {
+                            id = candidate;
+                            break;
+                        }
+                    }
+                    if (id != null) {
+                        order.remove(id);
+                    }
+                } else {
+                    id = order.pollFirst();
+                }
+                if (id == null) {
+                    return null;
+                }
+                pending.remove(id);
+                running.add(id);
+                if (viewed.contains(id)) {
+                    viewedRunning.add(id);
+                }
+            }
+            VideoMetadata video = videoDatabaseService.getVideo(id);
+            if (video != null && !video.isTranscoded()) {
+                return video;
+            }
+            finished(id);
+        }
+    }
+
+    // Points the catalog at the transcoded file once that is durable; false if the video has gone
+    // meanwhile, and an exception if the new entry could not be persisted
+    public boolean complete(VideoMetadata video, String filePath, long fileSize) throws IOException {
+        return videoDatabaseService.replaceFile(video.getId(), filePath, fileSize) != null;
+    }
+
+    public synchronized int size() {
+        return order.size();
+    }
+}
@@ -0,0 +1,47 @@
+package com.stdiscm.consumer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+// Takes turns between the producer hosts that have videos waiting, so one busy producer cannot
+// keep the others' uploads at the back of the line, however many connections it opens. Within a
+// host's turn, its shortest upload goes first, with the same aging as ShortestJobFirstScheduler.
+public class FairScheduler extends VideoScheduler {
+    private final Map<String, List<Entry>> entriesBySource = new HashMap<>();
+    private final Queue<String> turns = new ArrayDeque<>();
+    private final long agingNanos;
+
+    public FairScheduler(int capacity, long agingNanos) {
+        super(capacity);
+        this.agingNanos = agingNanos;
+    }
+
+    @Override
+    protected void add(Entry entry) {
+        String source = entry.videoFile.getSource();
+        List<Entry> entries = entriesBySource.get(source);
+        if (entries == null) {
+            entries = new ArrayList<>();
+            entriesBySource.put(source, entries);
+            turns.add(source);
+        }
+        entries.add(entry);
+    }
+
+    @Override
+    protected Entry next(long now) {
+        String source = turns.poll();
+        List<Entry> entries = entriesBySource.get(source);
+        Entry entry = takeShortest(entries, now, agingNanos);
+        if (entries.isEmpty()) {
+            entriesBySource.remove(source);
+        } else {
+            turns.add(source);
+        }
+        return entry;
+    }
+}
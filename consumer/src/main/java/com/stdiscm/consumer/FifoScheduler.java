@@ -0,0 +1,23 @@
+package com.stdiscm.consumer;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+// Videos in the order their uploads completed
+public class FifoScheduler extends VideoScheduler {
+    private final Queue<Entry> entries = new ArrayDeque<>();
+
+    public FifoScheduler(int capacity) {
+        super(capacity);
+    }
+
+    @Override
+    protected void add(Entry entry) {
+        entries.add(entry);
+    }
+
+    @Override
+    protected Entry next(long now) {
+        return entries.poll();
+    }
+}
@@ -0,0 +1,107 @@
+package com.stdiscm.consumer;
+
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.Java2DFrameConverter;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+// Picks the thumbnail and the preview frames out of the frames of a pass that is decoding the
+// video anyway, instead of opening and seeking the file again for each of them. Frames are fed in
+// decode order; the ones it keeps are copied, since the grabber reuses its buffers for the next.
+class FrameSampler implements AutoCloseable {
+    private static final long THUMBNAIL_TIMESTAMP = 1000000;       // 1 second in microseconds
+    private static final long MAX_PREVIEW_DURATION = 10 * 1000000;  // 10 seconds in microseconds
+
+    // The preview sprite is a strip of up to PREVIEW_FRAMES tiles of this size, left to right
+    private static final int PREVIEW_FRAMES = 10;
+    private static final int PREVIEW_FRAME_WIDTH = 320;
+    private static final int PREVIEW_FRAME_HEIGHT = 180;
+
+    private final Java2DFrameConverter converter = new Java2DFrameConverter();
+    private final long previewInterval;
+    private final BufferedImage sprite;
+    private final Graphics2D graphics;
+    private BufferedImage thumbnail;
+    private boolean thumbnailFinal;
+    private int previewFrames;
+
+    // The duration is what the grabber reports, or 0 if it does not know
+    FrameSampler(long duration) {
+        long previewDuration = duration > 0 ? Math.min(duration, MAX_PREVIEW_DURATION) : MAX_PREVIEW_DURATION;
+        this.previewInterval = previewDuration / PREVIEW_FRAMES;
+        this.sprite = new BufferedImage(PREVIEW_FRAME_WIDTH * PREVIEW_FRAMES, PREVIEW_FRAME_HEIGHT,
+                BufferedImage.TYPE_INT_RGB);
+        this.graphics = sprite.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    }
+
+    // Only the few frames that are kept get converted; everything else costs a comparison
+    void accept(Frame frame) {
+        if (frame.image == null || isDone()) {
+            return;
+        }
+        boolean wantsThumbnail = !thumbnailFinal && (thumbnail == null || frame.timestamp >= THUMBNAIL_TIMESTAMP);
+        boolean wantsPreview = previewFrames < PREVIEW_FRAMES && frame.timestamp >= previewFrames * previewInterval;
+        if (!wantsThumbnail && !wantsPreview) {
+            return;
+        }
+
+        BufferedImage image = converter.convert(frame);
+        if (image == null) {
+            return;
+        }
+        if (wantsThumbnail) {
+            // The first frame stands in until one at the thumbnail time turns up, for short videos
+            thumbnail = Java2DFrameConverter.cloneBufferedImage(image);
+            thumbnailFinal = frame.timestamp >= THUMBNAIL_TIMESTAMP;
+        }
+        // A low frame rate can leave one frame as the closest to several preview times
+        while (previewFrames < PREVIEW_FRAMES && frame.timestamp >= previewFrames * previewInterval) {
+            drawPreviewFrame(image, previewFrames++);
+        }
+    }
+
+    boolean isDone() {
+        return thumbnailFinal && previewFrames == PREVIEW_FRAMES;
+    }
+
+    void writeThumbnail(File file) throws IOException {
+        if (thumbnail == null) {
+            throw new IOException("No frame was decoded for the thumbnail");
+        }
+        ImageIO.write(thumbnail, "jpg", file);
+    }
+
+    void writePreview(File file) throws IOException {
+        if (previewFrames == 0) {
+            throw new IOException("No frames were decoded for the preview");
+        }
+        // Drop the empty tiles of a video too short for all frames
+        BufferedImage image = previewFrames < PREVIEW_FRAMES
+                ? sprite.getSubimage(0, 0, previewFrames * PREVIEW_FRAME_WIDTH, PREVIEW_FRAME_HEIGHT)
+                : sprite;
+        ImageIO.write(image, "jpg", file);
+    }
+
+    @Override
+    public void close() {
+        graphics.dispose();
+        converter.close();
+    }
+
+    // Scales the frame into its tile, keeping the aspect ratio and letterboxing the rest
+    private void drawPreviewFrame(BufferedImage image, int tile) {
+        double scale = Math.min((double) PREVIEW_FRAME_WIDTH / image.getWidth(),
+                (double) PREVIEW_FRAME_HEIGHT / image.getHeight());
+        int width = (int) Math.round(image.getWidth() * scale);
+        int height = (int) Math.round(image.getHeight() * scale);
+        int x = tile * PREVIEW_FRAME_WIDTH + (PREVIEW_FRAME_WIDTH - width) / 2;
+        int y = (PREVIEW_FRAME_HEIGHT - height) / 2;
+        graphics.drawImage(image, x, y, width, height, null);
+    }
+}
@@ -0,0 +1,304 @@
+package com.stdiscm.consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+// The framed protocol: a long-lived connection carrying several pipelined uploads, each one
+// identified by the request id the producer gave it
+class FramedUploadHandler implements UploadSession.ProtocolHandler {
+    private static final Logger logger = LoggerFactory.getLogger(FramedUploadHandler.class);
+    private static final int MAX_OPEN_UPLOADS = 16;
+
+    private final UploadSession session;
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(UploadProtocol.FRAME_HEADER_SIZE);
+    private final Map<Integer, SpooledUpload> uploads = new HashMap<>();
+
+    private byte frameType;
+    private int requestId;
+    private ByteBuffer controlPayload;   // Payload of the current control frame, while it is collected
+    private final ByteBuffer dataOffset = ByteBuffer.allocate(8);
+    private boolean readingDataOffset;  // Whether the offset of the current DATA frame is being read
+    private long dataRemaining;         // File bytes left in the current DATA frame
+    private SpooledUpload dataTarget;   // Where they go, or null to skip them
+
+    FramedUploadHandler(UploadSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public void onInput(ByteBuffer input) throws IOException {
+        while (input.hasRemaining() && !session.isClosed()) {
+            if (readingDataOffset) {
+                while (input.hasRemaining() && dataOffset.hasRemaining()) {
+                    dataOffset.put(input.get());
+                }
+                if (!dataOffset.hasRemaining()) {
+                    readingDataOffset = false;
+                    startData(dataOffset.getLong(0));
+                    dataOffset.clear();
+                }
+            } else if (dataRemaining > 0) {
+                readData(input);
+            } else if (controlPayload != null) {
+                while (input.hasRemaining() && controlPayload.hasRemaining()) {
+                    controlPayload.put(input.get());
+                }
+                if (!controlPayload.hasRemaining()) {
+                    handleControlFrame(controlPayload.array());
+                    controlPayload = null;
+                }
+            } else {
+                while (input.hasRemaining() && frameHeader.hasRemaining()) {
+                    frameHeader.put(input.get());
+                }
+                if (!frameHeader.hasRemaining()) {
+                    frameHeader.flip();
+                    frameType = frameHeader.get();
+                    requestId = frameHeader.getInt();
+                    int length = frameHeader.getInt();
+                    frameHeader.clear();
+                    startFrame(length);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isIdle() {
+        return uploads.isEmpty() && frameHeader.position() == 0 && controlPayload == null
+                && !readingDataOffset && dataRemaining == 0;
+    }
+
+    @Override
+    public void close() {
+        if (!uploads.isEmpty()) {
+            logger.warn("Connection from {} closed with {} unfinished uploads, keeping them for resumption",
+                    session.getRemoteAddress(), uploads.size());
+        }
+        for (SpooledUpload upload : uploads.values()) {
+            session.release(upload);
+        }
+        uploads.clear();
+        dataTarget = null;
+    }
+
+    private void startFrame(int length) throws IOException {
+        if (length < 0) {
+            protocolError("negative frame length");
+            return;
+        }
+
+        if (frameType == UploadProtocol.DATA) {
+            if (length < 8) {
+                protocolError("DATA frame without an offset");
+                return;
+            }
+            dataRemaining = length - 8;
+            readingDataOffset = true;
+            return;
+        }
+
+        if (length > UploadProtocol.MAX_CONTROL_PAYLOAD) {
+            protocolError("control frame of " + length + " bytes");
+            return;
+        }
+        if (length > 0) {
+            controlPayload = ByteBuffer.allocate(length);
+        } else {
+            handleControlFrame(new byte[0]);
+        }
+    }
+
+    private void startData(long offset) {
+        dataTarget = uploads.get(requestId);
+        if (dataTarget == null) {
+            return;
+        }
+
+        if (offset != dataTarget.getReceived()) {
+            // Keep what is already on disk; the producer can ask for the right offset again
+            logger.warn("Rejecting {}: data at offset {} but {} bytes were received",
+                    dataTarget.getFileName(), offset, dataTarget.getReceived());
+            uploads.remove(requestId);
+            session.release(dataTarget);
+            dataTarget = null;
+            writeReject(UploadProtocol.REJECT_INVALID);
+        } else if (dataRemaining > dataTarget.getRemaining()) {
+            logger.warn("Rejecting {}: more data than the declared size", dataTarget.getFileName());
+            uploads.remove(requestId);
+            session.discard(dataTarget);
+            dataTarget = null;
+            writeReject(UploadProtocol.REJECT_INVALID);
+        }
+    }
+
+    private void readData(ByteBuffer input) throws IOException {
+        if (dataTarget != null) {
+            dataRemaining -= dataTarget.write(input, dataRemaining);
+        } else {
+            // Data for an upload that was rejected or cancelled in the meantime
+            int skipped = (int) Math.min(input.remaining(), dataRemaining);
+            input.position(input.position() + skipped);
+            dataRemaining -= skipped;
+        }
+        if (dataRemaining == 0) {
+            dataTarget = null;
+        }
+    }
+
+    private void handleControlFrame(byte[] payload) throws IOException {
+        switch (frameType) {
+            case UploadProtocol.BEGIN:
+                handleBegin(new DataInputStream(new ByteArrayInputStream(payload)));
+                break;
+            case UploadProtocol.END:
+                handleEnd();
+                break;
+            case UploadProtocol.MANIFEST:
+                handleManifest(new DataInputStream(new ByteArrayInputStream(payload)));
+                break;
+            case UploadProtocol.CANCEL:
+                SpooledUpload cancelled = uploads.remove(requestId);
+                if (cancelled != null) {
+                    logger.info("Producer cancelled upload: {}", cancelled.getFileName());
+                    session.discard(cancelled);
+                }
+                break;
+            default:
+                protocolError("unknown frame type " + frameType);
+        }
+    }
+
+    private void handleBegin(DataInputStream payload) throws IOException {
+        String fileName = payload.readUTF();
+        String fileHash = payload.readUTF();
+        long fileSize = payload.readLong();
+
+        if (uploads.containsKey(requestId)) {
+            protocolError("request id " + requestId + " is already in use");
+            return;
+        }
+        if (uploads.size() >= MAX_OPEN_UPLOADS) {
+            logger.warn("Rejecting {}: too many open uploads on this connection", fileName);
+            writeReject(UploadProtocol.REJECT_BUSY);
+            return;
+        }
+        if (!UploadSession.isResumableHash(fileHash)) {
+            logger.warn("Rejecting {}: hash is not a hex digest", fileName);
+            writeReject(UploadProtocol.REJECT_INVALID);
+            return;
+        }
+
+        switch (session.admit(fileName, fileHash, fileSize)) {
+            case DUPLICATE:
+                writeReject(UploadProtocol.REJECT_DUPLICATE);
+                return;
+            case QUEUE_FULL:
+                writeReject(UploadProtocol.REJECT_QUEUE_FULL);
+                return;
+            case INVALID:
+                writeReject(UploadProtocol.REJECT_INVALID);
+                return;
+            case BUSY:
+                writeReject(UploadProtocol.REJECT_BUSY);
+                return;
+            default:
+                break;
+        }
+
+        SpooledUpload upload = session.resumeSpool(fileName, fileHash, fileSize);
+
+        // Tell the producer where to continue from
+        uploads.put(requestId, upload);
+        writeFrame(UploadProtocol.ACCEPT, 8).putLong(upload.getReceived());
+        session.flushOutput();
+    }
+
+    // Answers a whole batch of (hash, size) entries at once, so that a producer starting on a large
+    // directory learns which files are duplicates without offering them one by one
+    private void handleManifest(DataInputStream payload) throws IOException {
+        int count = payload.readInt();
+        if (count < 0 || count > UploadProtocol.MAX_CONTROL_PAYLOAD / 11) {
+            protocolError("manifest with " + count + " entries");
+            return;
+        }
+
+        byte[] statuses = new byte[count];
+        int needed = 0;
+        int duplicates = 0;
+        for (int i = 0; i < count; i++) {
+            String fileHash = payload.readUTF();
+            long fileSize = payload.readLong();
+
+            if (fileSize < 0 || !UploadSession.isResumableHash(fileHash)) {
+                statuses[i] = UploadProtocol.MANIFEST_INVALID;
+            } else {
+                switch (session.lookup(fileHash)) {
+                    case COMMITTED:
+                        statuses[i] = UploadProtocol.MANIFEST_DUPLICATE;
+                        duplicates++;
+                        break;
+                    case RESERVED:
+                        statuses[i] = UploadProtocol.MANIFEST_IN_PROGRESS;
+                        break;
+                    default:
+                        statuses[i] = UploadProtocol.MANIFEST_NEEDED;
+                        needed++;
+                }
+            }
+        }
+
+        // How many uploads this connection could start right now
+        int acceptable = Math.max(0, Math.min(session.getRemainingCapacity(), MAX_OPEN_UPLOADS - uploads.size()));
+
+        logger.info("Manifest from {}: {} files, {} needed, {} duplicates, {} acceptable now",
+                session.getRemoteAddress(), count, needed, duplicates, acceptable);
+
+        writeFrame(UploadProtocol.MANIFEST_REPLY, 8 + count).putInt(acceptable).putInt(count).put(statuses);
+        session.flushOutput();
+    }
+
+    private void handleEnd() throws IOException {
+        SpooledUpload upload = uploads.remove(requestId);
+        boolean added = false;
+        if (upload == null) {
+            logger.warn("END for unknown request {} from {}", requestId, session.getRemoteAddress());
+        } else if (!upload.isComplete()) {
+            logger.warn("Upload of {} ended with {} bytes missing", upload.getFileName(), upload.getRemaining());
+            session.release(upload);
+        } else if (upload.isResumed() && !upload.matchesHash()) {
+            // The next attempt starts over from the first byte
+            logger.warn("Resumed upload of {} does not match its hash, discarding it", upload.getFileName());
+            session.discard(upload);
+        } else {
+            added = session.queue(upload);
+        }
+
+        writeFrame(UploadProtocol.RESULT, 1).put((byte) (added ? 1 : 0));
+        session.flushOutput();
+    }
+
+    private void writeReject(byte reason) {
+        writeFrame(UploadProtocol.REJECT, 1).put(reason);
+        session.flushOutput();
+    }
+
+    // Writes a frame header for the current request; the caller puts the payload and flushes
+    private ByteBuffer writeFrame(byte type, int payloadLength) {
+        ByteBuffer output = session.beginOutput(UploadProtocol.FRAME_HEADER_SIZE + payloadLength);
+        output.put(type).putInt(requestId).putInt(payloadLength);
+        return output;
+    }
+
+    private void protocolError(String message) {
+        logger.error("Closing connection from {}: {}", session.getRemoteAddress(), message);
+        session.finish();
+    }
+}
@@ -0,0 +1,165 @@
+package com.stdiscm.consumer;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Packages a processed MP4 as HLS, so players fetch a few seconds at a time and start after the
+// first segment whatever the size of the file. The MP4 is cut into segments as it is, without
+// re-encoding, and each rung of the optional ladder is encoded from it at a lower height:
+//
+//   <hls directory>/<id>/master.m3u8
+//   <hls directory>/<id>/<rendition>/index.m3u8, seg-00000.ts, ...
+//
+// A video's files never change once written, so they can be cached for good. Everything is
+// written under a temporary name and moved into place at the end, so nothing is ever served half
+// written.
+public class HlsPackager {
+    private static final Logger logger = LoggerFactory.getLogger(HlsPackager.class);
+    public static final String DIRECTORY = "uploads/hls";
+    public static final String MASTER_PLAYLIST = "master.m3u8";
+    private static final String MEDIA_PLAYLIST = "index.m3u8";
+    private static final String SOURCE_RENDITION = "source";
+    private static final int MIN_LADDER_BITRATE = 150000;
+
+    private final Path hlsDirectory;
+    private final int segmentSeconds;
+    private final int[] ladderHeights;
+
+    public HlsPackager(Path hlsDirectory, int segmentSeconds, int[] ladderHeights) throws IOException {
+        Files.createDirectories(hlsDirectory);
+        this.hlsDirectory = hlsDirectory;
+        this.segmentSeconds = segmentSeconds;
+        this.ladderHeights = ladderHeights;
+    }
+
+    public void packageVideo(String videoPath, String id) throws IOException {
+        Path target = hlsDirectory.resolve(id);
+        Path temp = hlsDirectory.resolve(id + ".tmp");
+        FileUtils.deleteDirectory(temp.toFile());
+        Files.createDirectories(temp);
+
+        try {
+            List<String> variants = new ArrayList<>();
+            int width;
+            int height;
+            try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(videoPath)) {
+                grabber.start();
+                width = grabber.getImageWidth();
+                height = grabber.getImageHeight();
+                long duration = grabber.getLengthInTime();
+                long bitrate = duration > 0 ? Files.size(Paths.get(videoPath)) * 8 * 1000000 / duration : 0;
+                copySegments(grabber, temp.resolve(SOURCE_RENDITION));
+                grabber.stop();
+                variants.add(variant(bitrate, width, height, SOURCE_RENDITION));
+            }
+
+            for (int ladderHeight : ladderHeights) {
+                if (ladderHeight >= height) {
+                    continue;
+                }
+                // Even dimensions, as H.264 needs, at the source's aspect ratio
+                int ladderWidth = (int) Math.round((double) width * ladderHeight / height / 2) * 2;
+                String rendition = ladderHeight + "p";
+                int bitrate = encodeSegments(videoPath, temp.resolve(rendition), ladderWidth, ladderHeight);
+                variants.add(variant(bitrate, ladderWidth, ladderHeight, rendition));
+            }
+
+            StringBuilder master = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n");
+            for (String variant : variants) {
+                master.append(variant);
+            }
+            Files.write(temp.resolve(MASTER_PLAYLIST), master.toString().getBytes(StandardCharsets.UTF_8));
+
+            FileUtils.deleteDirectory(target.toFile());
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Packaged {} as HLS with {} renditions", id, variants.size());
+        } catch (IOException e) {
+            FileUtils.deleteDirectory(temp.toFile());
+            throw e;
+        } catch (Exception e) {
+            FileUtils.deleteDirectory(temp.toFile());
+            throw new IOException("Failed to package video as HLS: " + videoPath, e);
+        }
+    }
+
+    // Cuts the already encoded streams into segments, at the keyframes nearest the segment length
+    private void copySegments(FFmpegFrameGrabber grabber, Path directory) throws Exception {
+        Files.createDirectories(directory);
+        FFmpegFrameRecorder recorder = newRecorder(directory, grabber.getImageWidth(), grabber.getImageHeight(),
+                grabber.getAudioChannels());
+        try {
+            recorder.start(grabber.getFormatContext());
+            AVPacket packet;
+            while ((packet = grabber.grabPacket()) != null) {
+                recorder.recordPacket(packet);
+            }
+            recorder.stop();
+        } finally {
+            recorder.release();
+        }
+    }
+
+    // Encodes a smaller rendition, with a keyframe at every segment boundary; returns its bitrate
+    private int encodeSegments(String videoPath, Path directory, int width, int height) throws Exception {
+        Files.createDirectories(directory);
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(videoPath)) {
+            grabber.start();
+            // Bits per pixel kept from the source, within reason
+            double scale = (double) (width * height) / (grabber.getImageWidth() * grabber.getImageHeight());
+            int bitrate = (int) Math.max(MIN_LADDER_BITRATE, grabber.getVideoBitrate() * scale);
+
+            FFmpegFrameRecorder recorder = newRecorder(directory, width, height, grabber.getAudioChannels());
+            try {
+                recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+                recorder.setVideoBitrate(bitrate);
+                recorder.setFrameRate(grabber.getFrameRate());
+                recorder.setGopSize((int) Math.max(1, Math.round(grabber.getFrameRate() * segmentSeconds)));
+                recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
+                recorder.setSampleRate(grabber.getSampleRate());
+                recorder.start();
+
+                // The recorder scales each frame to its own size
+                Frame frame;
+                while ((frame = grabber.grab()) != null) {
+                    recorder.record(frame);
+                }
+                recorder.stop();
+            } finally {
+                recorder.release();
+            }
+            grabber.stop();
+            return bitrate + recorder.getAudioBitrate();
+        }
+    }
+
+    private FFmpegFrameRecorder newRecorder(Path directory, int width, int height, int audioChannels) {
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(directory.resolve(MEDIA_PLAYLIST).toString(),
+                width, height, audioChannels);
+        recorder.setFormat("hls");
+        recorder.setOption("hls_time", Integer.toString(segmentSeconds));
+        recorder.setOption("hls_list_size", "0");
+        recorder.setOption("hls_playlist_type", "vod");
+        recorder.setOption("hls_segment_filename", directory.resolve("seg-%05d.ts").toString());
+        return recorder;
+    }
+
+    private static String variant(long bitrate, int width, int height, String rendition) {
+        return "#EXT-X-STREAM-INF:BANDWIDTH=" + Math.max(1, bitrate) + ",RESOLUTION=" + width + "x" + height + "\n"
+                + rendition + "/" + MEDIA_PLAYLIST + "\n";
+    }
+}
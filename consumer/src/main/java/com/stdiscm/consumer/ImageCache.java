@@ -0,0 +1,82 @@
+package com.stdiscm.consumer;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Thumbnails and preview images held in memory, least recently used first out, bounded by their
+// total size in bytes rather than their number. The files are named after the content hash and
+// never change, so entries never need to be invalidated.
+@Component
+public class ImageCache {
+    // No single image may take more than this share of the cache
+    private static final int MAX_ENTRY_FRACTION = 16;
+
+    @Value("${media.image-cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    // Guarded by this; iteration order is least recently used first
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long currentBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    // Returns the file's contents, from memory when possible, or null if there is no such file
+    public byte[] get(File file) throws IOException {
+        String key = file.getPath();
+        synchronized (this) {
+            byte[] cached = entries.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+
+        // Read outside the lock so that a slow disk does not hold up hits
+        if (!file.isFile()) {
+            return null;
+        }
+        byte[] data = Files.readAllBytes(file.toPath());
+        if (data.length <= maxBytes / MAX_ENTRY_FRACTION) {
+            put(key, data);
+        }
+        return data;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        long requests = hits + misses;
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRate", requests == 0 ? 0.0 : (double) hits / requests);
+        stats.put("evictions", evictions);
+        stats.put("entries", entries.size());
+        stats.put("bytes", currentBytes);
+        stats.put("maxBytes", maxBytes);
+        return stats;
+    }
+
+    private synchronized void put(String key, byte[] data) {
+        byte[] previous = entries.put(key, data);
+        if (previous != null) {
+            currentBytes -= previous.length;
+        }
+        currentBytes += data.length;
+
+        Iterator<byte[]> eldest = entries.values().iterator();
+        while (currentBytes > maxBytes && eldest.hasNext()) {
+            currentBytes -= eldest.next().length;
+            eldest.remove();
+            evictions++;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.stdiscm.consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// The original protocol: one file per connection, answered with a boolean after the header
+// (accepted) and another after the data (queued)
+class LegacyUploadHandler implements UploadSession.ProtocolHandler {
+    private static final Logger logger = LoggerFactory.getLogger(LegacyUploadHandler.class);
+    private static final int MAX_HEADER_SIZE = 2 * (2 + 65535) + 8;
+
+    private final UploadSession session;
+    private final ByteBuffer header = ByteBuffer.allocate(MAX_HEADER_SIZE);
+    private SpooledUpload upload;
+
+    LegacyUploadHandler(UploadSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public void onInput(ByteBuffer input) throws IOException {
+        while (input.hasRemaining() && !session.isClosed()) {
+            if (upload == null) {
+                // Headers are tiny, so copying them byte by byte keeps the parser simple
+                header.put(input.get());
+                if (isHeaderComplete()) {
+                    handleHeader();
+                }
+            } else {
+                upload.write(input, input.remaining());
+                if (upload.isComplete()) {
+                    queueUpload();
+                }
+            }
+        }
+    }
+
+    // One file per connection, so a connection that goes quiet is stuck
+    @Override
+    public boolean isIdle() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        if (upload != null) {
+            logger.warn("Connection from {} closed with {} bytes of {} left to receive",
+                    session.getRemoteAddress(), upload.getRemaining(), upload.getFileName());
+            session.discard(upload);
+            upload = null;
+        }
+    }
+
+    private boolean isHeaderComplete() {
+        // name (UTF), hash (UTF), size (long) as written by DataOutputStream
+        int position = header.position();
+        if (position < 2) {
+            return false;
+        }
+        int hashLengthOffset = 2 + Short.toUnsignedInt(header.getShort(0));
+        if (position < hashLengthOffset + 2) {
+            return false;
+        }
+        int headerLength = hashLengthOffset + 2 + Short.toUnsignedInt(header.getShort(hashLengthOffset)) + 8;
+        return position == headerLength;
+    }
+
+    private void handleHeader() throws IOException {
+        DataInputStream dis = new DataInputStream(
+                new ByteArrayInputStream(header.array(), 0, header.position()));
+        String fileName = dis.readUTF();
+        String fileHash = dis.readUTF();
+        long fileSize = dis.readLong();
+
+        if (session.admit(fileName, fileHash, fileSize) != UploadSession.Admission.ACCEPTED) {
+            writeBoolean(false);
+            session.finish();
+            return;
+        }
+
+        writeBoolean(true);
+
+        // Stream the file data to the spool so heap use does not grow with file size
+        upload = session.openSpool(fileName, fileHash, fileSize);
+        if (upload.isComplete()) {
+            queueUpload();
+        }
+    }
+
+    private void queueUpload() throws IOException {
+        boolean added = session.queue(upload);
+        upload = null;
+
+        // Send result
+        writeBoolean(added);
+        session.finish();
+    }
+
+    private void writeBoolean(boolean value) {
+        session.beginOutput(1).put((byte) (value ? 1 : 0));
+        session.flushOutput();
+    }
+}
@@ -0,0 +1,116 @@
+package com.stdiscm.consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+// MD5 state of the partial uploads in the spool, saved when a connection lets go of one, so that
+// a resumed upload can be checked against its hash without reading back what was already received
+public class PartialDigests {
+    private static final Logger logger = LoggerFactory.getLogger(PartialDigests.class);
+
+    private final Path spoolDirectory;
+    private final DedupIndex dedupIndex;
+    private final Map<String, Saved> saved = new HashMap<>();
+
+    private static class Saved {
+        final MessageDigest digest;
+        final long length;   // Bytes of the partial file the digest covers
+
+        Saved(MessageDigest digest, long length) {
+            this.digest = digest;
+            this.length = length;
+        }
+    }
+
+    public PartialDigests(Path spoolDirectory, DedupIndex dedupIndex) {
+        this.spoolDirectory = spoolDirectory;
+        this.dedupIndex = dedupIndex;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Partial files kept from a previous run have no saved state; it is rebuilt in the background,
+    // and an upload resumed before that is done starts over
+    public void start() {
+        Thread rebuilder = new Thread(this::rebuild, "partial-digests");
+        rebuilder.setDaemon(true);
+        rebuilder.start();
+    }
+
+    // Hands over the state for a partial file of the given length, or null if there is none
+    synchronized MessageDigest take(String fileHash, long length) {
+        Saved entry = saved.remove(fileHash);
+        return entry != null && entry.length == length ? entry.digest : null;
+    }
+
+    synchronized void save(String fileHash, MessageDigest digest, long length) {
+        saved.put(fileHash, new Saved(digest, length));
+    }
+
+    synchronized void remove(String fileHash) {
+        saved.remove(fileHash);
+    }
+
+    private void rebuild() {
+        int rebuilt = 0;
+        try (DirectoryStream<Path> partials = Files.newDirectoryStream(spoolDirectory,
+                "*" + UploadSessionFactory.PARTIAL_SUFFIX)) {
+            for (Path partial : partials) {
+                String fileName = partial.getFileName().toString();
+                String fileHash = fileName.substring(0, fileName.length() - UploadSessionFactory.PARTIAL_SUFFIX.length());
+                try {
+                    long length = Files.size(partial);
+                    MessageDigest digest = hash(partial, length);
+                    synchronized (this) {
+                        // A connection may have picked the upload up meanwhile; then its own state wins
+                        if (!saved.containsKey(fileHash) && dedupIndex.lookup(fileHash) == DedupIndex.State.ABSENT
+                                && Files.size(partial) == length) {
+                            saved.put(fileHash, new Saved(digest, length));
+                            rebuilt++;
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.warn("Could not hash partial upload {}: {}", fileName, e.toString());
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to list partial uploads", e);
+        }
+        if (rebuilt > 0) {
+            logger.info("Rebuilt the digests of {} partial uploads", rebuilt);
+        }
+    }
+
+    private static MessageDigest hash(Path partial, long length) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = length;
+        try (InputStream in = Files.newInputStream(partial)) {
+            int read;
+            while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        if (remaining > 0) {
+            throw new IOException("partial file shrank while being hashed");
+        }
+        return digest;
+    }
+}
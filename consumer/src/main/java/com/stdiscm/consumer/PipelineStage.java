@@ -0,0 +1,104 @@
+package com.stdiscm.consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// One step of video processing: a bounded queue in front of its own pool of threads. Handing an
+// item to a stage blocks while its queue is full, so a stage that falls behind holds back the one
+// before it instead of letting finished work pile up in memory.
+public class PipelineStage<T> {
+    private static final Logger logger = LoggerFactory.getLogger(PipelineStage.class);
+
+    public interface Handler<T> {
+        void handle(T item) throws Exception;
+    }
+
+    private final String name;
+    private final int threads;
+    private final BlockingQueue<T> queue;
+    private final Handler<T> handler;
+    private final Function<T, String> describe;   // Names an item in the log
+    private final ExecutorService executor;
+    private final AtomicBoolean running = new AtomicBoolean(true);
+
+    public PipelineStage(String name, int threads, int capacity, Handler<T> handler, Function<T, String> describe) {
+        this.name = name;
+        this.threads = threads;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.handler = handler;
+        this.describe = describe;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> new Thread(r, name + "-" + count.incrementAndGet()));
+    }
+
+    public void start() {
+        for (int i = 0; i < threads; i++) {
+            executor.submit(this::work);
+        }
+        logger.info("Pipeline stage {} started with {} threads", name, threads);
+    }
+
+    // Blocks until the stage has room
+    public void put(T item) throws InterruptedException {
+        queue.put(item);
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    // Finishes what is already queued, for up to the given time. Whatever is left after that is
+    // dropped, and named in the log, since its spool file is already gone.
+    public void stop(long timeoutMillis) {
+        running.set(false);
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                logger.warn("Pipeline stage {} stopped with {} items left", name, queue.size());
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        List<T> left = new ArrayList<>();
+        queue.drainTo(left);
+        for (T item : left) {
+            logger.warn("Pipeline stage {} dropped {}", name, describe.apply(item));
+        }
+    }
+
+    private void work() {
+        while (running.get() || !queue.isEmpty()) {
+            T item;
+            try {
+                item = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (item == null) {
+                continue;
+            }
+            try {
+                handler.handle(item);
+            } catch (InterruptedException e) {
+                logger.warn("Pipeline stage {} was stopped while handling {}", name, describe.apply(item));
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.error("Pipeline stage {} failed", name, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.stdiscm.consumer;
+
+import java.nio.file.Path;
+
+// A transcoded video on its way through the later pipeline stages, or with lazy transcoding the
+// upload as received; the sampler holds the thumbnail and preview frames that still have to be written
+class ProcessedVideo {
+    private final VideoFile videoFile;
+    private final String savedPath;
+    private final long fileSize;
+    private final FrameSampler sampler;
+    private final Path thumbnailPath;
+    private final Path previewPath;
+    private final boolean transcoded;
+
+    ProcessedVideo(VideoFile videoFile, String savedPath, long fileSize, FrameSampler sampler,
+                   Path thumbnailPath, Path previewPath, boolean transcoded) {
+        this.videoFile = videoFile;
+        this.savedPath = savedPath;
+        this.fileSize = fileSize;
+        this.sampler = sampler;
+        this.thumbnailPath = thumbnailPath;
+        this.previewPath = previewPath;
+        this.transcoded = transcoded;
+    }
+
+    VideoFile getVideoFile() {
+        return videoFile;
+    }
+
+    String getSavedPath() {
+        return savedPath;
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    FrameSampler getSampler() {
+        return sampler;
+    }
+
+    Path getThumbnailPath() {
+        return thumbnailPath;
+    }
+
+    Path getPreviewPath() {
+        return previewPath;
+    }
+
+    boolean isTranscoded() {
+        return transcoded;
+    }
+}
@@ -8,7 +8,6 @@ import org.springframework.stereotype.Component;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 
 @Component
 @EnableScheduling
@@ -17,12 +16,17 @@ public class QueueMonitor {
     @Autowired
     private SimpMessagingTemplate messagingTemplate;
 
-    private BlockingQueue<VideoFile> videoQueue;
+    @Autowired
+    private DeferredTranscodes deferredTranscodes;
+
+    private VideoScheduler videoQueue;
     private int maxQueueSize;
+    private UploadBudget uploadBudget;
 
-    public void initialize(BlockingQueue<VideoFile> videoQueue, int maxQueueSize) {
+    public void initialize(VideoScheduler videoQueue, int maxQueueSize, UploadBudget uploadBudget) {
         this.videoQueue = videoQueue;
         this.maxQueueSize = maxQueueSize;
+        this.uploadBudget = uploadBudget;
     }
 
     @Scheduled(fixedRate = 5000) // Report every 5 seconds
@@ -34,8 +38,16 @@ public class QueueMonitor {
             status.put("maxSize", maxQueueSize);
             status.put("remainingCapacity", videoQueue.remainingCapacity());
 
+            // Uploads admitted and not yet processed, including those still being received
+            status.put("uploadsInFlight", uploadBudget.getReservations());
+            status.put("bytesInFlight", uploadBudget.getReservedBytes());
+            status.put("maxBytes", uploadBudget.getCapacity());
+
+            // Published with the upload as received, waiting for an idle consumer to transcode them
+            status.put("awaitingTranscode", deferredTranscodes.size());
+
             // Add a new field for the simplified status
-            boolean isFull = videoQueue.remainingCapacity() == 0;
+            boolean isFull = videoQueue.remainingCapacity() == 0 || uploadBudget.isFull();
             status.put("isFull", isFull);
 
             messagingTemplate.convertAndSend("/topic/queue-status", status);
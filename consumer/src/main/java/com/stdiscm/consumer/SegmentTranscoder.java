@@ -0,0 +1,210 @@
+package com.stdiscm.consumer;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Transcodes a long video as several segments at once. The input is cut at keyframes roughly
+// every segment length, each segment is encoded on the shared fork-join pool into a file of its
+// own, and the encoded segments are then joined packet by packet into the output, without
+// decoding them again.
+public class SegmentTranscoder {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentTranscoder.class);
+    private static final AVRational MICROSECONDS = new AVRational().num(1).den(1000000);
+
+    // Encodes the grabber's frames from where it stands up to, not including, the end timestamp
+    public interface Encoder {
+        void encode(FFmpegFrameGrabber grabber, String outputPath, long endTimestamp, FrameSampler sampler,
+                    int encoderThreads) throws Exception;
+    }
+
+    private final ForkJoinPool pool;
+    private final long thresholdMicros;
+    private final long segmentMicros;
+
+    public SegmentTranscoder(ForkJoinPool pool, long thresholdMicros, long segmentMicros) {
+        this.pool = pool;
+        this.thresholdMicros = thresholdMicros;
+        this.segmentMicros = segmentMicros;
+    }
+
+    public boolean appliesTo(long duration) {
+        return duration >= thresholdMicros;
+    }
+
+    // The sampler sees the frames of the first segment, which always covers the preview
+    public void transcode(String inputPath, String outputPath, long duration, FrameSampler sampler,
+                          Encoder encoder) throws Exception {
+        long[] starts = findSegmentStarts(inputPath, duration);
+        int segmentCount = starts.length;
+        // Each encoder gets its share of the cores, rather than every one of them starting a thread per core
+        int encoderThreads = Math.max(1, pool.getParallelism() / Math.min(segmentCount, pool.getParallelism()));
+        logger.info("Transcoding {} in {} segments, {} encoder threads each", inputPath, segmentCount, encoderThreads);
+
+        List<Path> segmentPaths = new ArrayList<>();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        try {
+            for (int i = 0; i < segmentCount; i++) {
+                Path segmentPath = Paths.get(outputPath + ".part" + i + ".mp4");
+                segmentPaths.add(segmentPath);
+                long start = starts[i];
+                long end = i + 1 < segmentCount ? starts[i + 1] : Long.MAX_VALUE;
+                FrameSampler segmentSampler = i == 0 ? sampler : null;
+                tasks.add(pool.submit(() -> {
+                    try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputPath)) {
+                        grabber.start();
+                        if (start > 0) {
+                            grabber.setTimestamp(start);
+                        }
+                        encoder.encode(grabber, segmentPath.toString(), end, segmentSampler, encoderThreads);
+                        grabber.stop();
+                    }
+                    return null;
+                }));
+            }
+
+            // Wait for all of them, so no segment is still being written when the files are removed
+            Exception failure = null;
+            for (ForkJoinTask<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            concat(segmentPaths, starts, outputPath);
+        } finally {
+            for (ForkJoinTask<?> task : tasks) {
+                task.cancel(false);
+            }
+            for (Path segmentPath : segmentPaths) {
+                Files.deleteIfExists(segmentPath);
+            }
+        }
+    }
+
+    // Start times of the segments: keyframes at least a segment length apart, the first at 0. A
+    // last segment shorter than half the length is left joined to the one before it.
+    private long[] findSegmentStarts(String inputPath, long duration) throws IOException {
+        List<Long> starts = new ArrayList<>();
+        starts.add(0L);
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputPath)) {
+            grabber.start();
+            AVFormatContext context = grabber.getFormatContext();
+            int videoIndex = -1;
+            for (int i = 0; i < context.nb_streams(); i++) {
+                if (context.streams(i).codecpar().codec_type() == avutil.AVMEDIA_TYPE_VIDEO) {
+                    videoIndex = i;
+                    break;
+                }
+            }
+            if (videoIndex < 0) {
+                return new long[] { 0 };
+            }
+            AVRational timeBase = context.streams(videoIndex).time_base();
+            long startTime = context.start_time() == avutil.AV_NOPTS_VALUE ? 0 : context.start_time();
+
+            // Only packet headers are read here, nothing is decoded
+            long next = segmentMicros;
+            AVPacket packet;
+            while ((packet = grabber.grabPacket()) != null) {
+                if (packet.stream_index() != videoIndex || (packet.flags() & avcodec.AV_PKT_FLAG_KEY) == 0
+                        || packet.pts() == avutil.AV_NOPTS_VALUE) {
+                    continue;
+                }
+                long timestamp = avutil.av_rescale_q(packet.pts(), timeBase, MICROSECONDS) - startTime;
+                if (timestamp >= next && duration - timestamp >= segmentMicros / 2) {
+                    starts.add(timestamp);
+                    next = timestamp + segmentMicros;
+                }
+            }
+            grabber.stop();
+        } catch (FFmpegFrameGrabber.Exception e) {
+            throw new IOException("Failed to find keyframes in " + inputPath, e);
+        }
+        return starts.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    // Copies the packets of every segment into the output, each shifted to where its segment
+    // starts. The recorder converts packet times using the streams of the first segment, so those
+    // are what every packet is expressed in, and the first segment stays open until the end.
+    private void concat(List<Path> segmentPaths, long[] starts, String outputPath) throws Exception {
+        List<FFmpegFrameGrabber> grabbers = new ArrayList<>();
+        FFmpegFrameRecorder recorder = null;
+        try {
+            AVFormatContext firstContext = null;
+            long[] lastDts = null;
+            for (int i = 0; i < segmentPaths.size(); i++) {
+                FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(segmentPaths.get(i).toFile());
+                grabbers.add(grabber);
+                grabber.start();
+                AVFormatContext context = grabber.getFormatContext();
+                if (recorder == null) {
+                    firstContext = context;
+                    recorder = new FFmpegFrameRecorder(outputPath, grabber.getImageWidth(), grabber.getImageHeight(),
+                            grabber.getAudioChannels());
+                    recorder.setFormat("mp4");
+                    recorder.setOption("movflags", "+faststart");
+                    recorder.start(firstContext);
+                    lastDts = new long[firstContext.nb_streams()];
+                    Arrays.fill(lastDts, Long.MIN_VALUE);
+                }
+
+                AVPacket packet;
+                while ((packet = grabber.grabPacket()) != null) {
+                    int index = packet.stream_index();
+                    if (index >= lastDts.length) {
+                        continue;
+                    }
+                    AVRational from = context.streams(index).time_base();
+                    AVRational to = firstContext.streams(index).time_base();
+                    long offset = avutil.av_rescale_q(starts[i], MICROSECONDS, to);
+                    packet.pts(shift(packet.pts(), from, to, offset));
+                    packet.dts(shift(packet.dts(), from, to, offset));
+                    packet.duration(avutil.av_rescale_q(packet.duration(), from, to));
+                    // The audio encoder's priming at the start of a segment overlaps the previous one
+                    if (packet.dts() != avutil.AV_NOPTS_VALUE && packet.dts() <= lastDts[index]) {
+                        continue;
+                    }
+                    lastDts[index] = packet.dts();
+                    recorder.recordPacket(packet);
+                }
+            }
+            recorder.stop();
+        } finally {
+            if (recorder != null) {
+                recorder.release();
+            }
+            for (FFmpegFrameGrabber grabber : grabbers) {
+                grabber.close();
+            }
+        }
+    }
+
+    private static long shift(long time, AVRational from, AVRational to, long offset) {
+        return time == avutil.AV_NOPTS_VALUE ? time : avutil.av_rescale_q(time, from, to) + offset;
+    }
+}
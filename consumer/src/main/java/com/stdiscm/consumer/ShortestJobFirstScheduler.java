@@ -0,0 +1,26 @@
+package com.stdiscm.consumer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The smallest upload first, aged so that large ones are not starved. The queue holds at most a
+// few dozen videos, so a scan per poll is cheaper than keeping a heap whose order changes with time.
+public class ShortestJobFirstScheduler extends VideoScheduler {
+    private final List<Entry> entries = new ArrayList<>();
+    private final long agingNanos;
+
+    public ShortestJobFirstScheduler(int capacity, long agingNanos) {
+        super(capacity);
+        this.agingNanos = agingNanos;
+    }
+
+    @Override
+    protected void add(Entry entry) {
+        entries.add(entry);
+    }
+
+    @Override
+    protected Entry next(long now) {
+        return takeShortest(entries, now, agingNanos);
+    }
+}
@@ -0,0 +1,147 @@
+package com.stdiscm.consumer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+// An upload whose bytes are being written to a spool file
+public class SpooledUpload {
+    private final String fileName;
+    private final String fileHash;
+    private final long fileSize;
+    private final Path spoolPath;
+    private FileChannel spoolChannel;
+    private long received;
+    private final boolean resumed;   // Whether part of the file came from an earlier connection
+    private final MessageDigest digest;   // MD5 of everything received so far, for resumable uploads
+
+    private SpooledUpload(String fileName, String fileHash, long fileSize, Path spoolPath,
+            FileChannel spoolChannel, long received, MessageDigest digest) {
+        this.fileName = fileName;
+        this.fileHash = fileHash;
+        this.fileSize = fileSize;
+        this.spoolPath = spoolPath;
+        this.spoolChannel = spoolChannel;
+        this.received = received;
+        this.resumed = received > 0;
+        this.digest = digest;
+    }
+
+    public static SpooledUpload create(String fileName, String fileHash, long fileSize, Path spoolPath)
+            throws IOException {
+        FileChannel channel = FileChannel.open(spoolPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        return new SpooledUpload(fileName, fileHash, fileSize, spoolPath, channel, 0, null);
+    }
+
+    // Opens the spool file, continuing after whatever an earlier connection left in it. Without the
+    // digest of that part it could not be checked against the hash, so it is started over.
+    public static SpooledUpload resume(String fileName, String fileHash, long fileSize, Path spoolPath,
+            PartialDigests partialDigests) throws IOException {
+        FileChannel channel = FileChannel.open(spoolPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        long received = channel.size();
+        MessageDigest digest = partialDigests.take(fileHash, received);
+        if (received > fileSize || (received > 0 && digest == null)) {
+            // Left over from a different file with the same hash and name, or not hashed yet
+            channel.truncate(0);
+            received = 0;
+        }
+        if (received == 0) {
+            digest = PartialDigests.newDigest();
+        }
+        channel.position(received);
+        return new SpooledUpload(fileName, fileHash, fileSize, spoolPath, channel, received, digest);
+    }
+
+    // Writes up to maxBytes from input, never past the declared file size
+    public long write(ByteBuffer input, long maxBytes) throws IOException {
+        long writable = Math.min(Math.min(maxBytes, input.remaining()), getRemaining());
+        int limit = input.limit();
+        input.limit(input.position() + (int) writable);
+        int start = input.position();
+        long written = 0;
+        try {
+            while (input.hasRemaining()) {
+                written += spoolChannel.write(input);
+            }
+        } finally {
+            input.limit(limit);
+        }
+        received += written;
+        if (digest != null) {
+            ByteBuffer bytes = input.duplicate();
+            bytes.position(start).limit(start + (int) written);
+            digest.update(bytes);
+        }
+        return written;
+    }
+
+    public boolean isComplete() {
+        return received == fileSize;
+    }
+
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    // Whether what was received hashes to the declared MD5. Only needed for a resumed upload, whose
+    // first part may have come from a producer that sent different bytes under the same hash.
+    public boolean matchesHash() {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString().equalsIgnoreCase(fileHash);
+    }
+
+    // Null for uploads that cannot be resumed
+    public MessageDigest getDigest() {
+        return digest;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getRemaining() {
+        return fileSize - received;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    // Closes the spool file and hands it over as a queue entry
+    public VideoFile toVideoFile(String source) throws IOException {
+        closeChannel();
+        return new VideoFile(fileName, fileHash, spoolPath, fileSize, source);
+    }
+
+    // Closes the spool file but keeps what was received so far
+    public void release() throws IOException {
+        closeChannel();
+    }
+
+    public void discard() throws IOException {
+        closeChannel();
+        Files.deleteIfExists(spoolPath);
+    }
+
+    private void closeChannel() throws IOException {
+        if (spoolChannel != null) {
+            spoolChannel.close();
+            spoolChannel = null;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.stdiscm.consumer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bytes of the uploads admitted but not yet processed, counted from the handshake, using the size
+// the producer declared, until the consumer is done with the spool file. Admission is bounded by
+// bytes rather than by a file count, so a handful of huge uploads cannot fill the spool disk while
+// plenty of small ones are not held back by a slot limit.
+public class UploadBudget {
+    private final long capacity;
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicInteger reservations = new AtomicInteger();
+
+    public UploadBudget(long capacity) {
+        this.capacity = capacity;
+    }
+
+    // An upload larger than the whole budget is let in when nothing else is reserved, so it can
+    // still get through, one at a time
+    public boolean tryReserve(long bytes) {
+        while (true) {
+            long current = reservedBytes.get();
+            if (current > 0 && current + bytes > capacity) {
+                return false;
+            }
+            if (reservedBytes.compareAndSet(current, current + bytes)) {
+                reservations.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public void release(long bytes) {
+        reservedBytes.addAndGet(-bytes);
+        reservations.decrementAndGet();
+    }
+
+    public boolean isFull() {
+        return reservedBytes.get() >= capacity;
+    }
+
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    public int getReservations() {
+        return reservations.get();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+}
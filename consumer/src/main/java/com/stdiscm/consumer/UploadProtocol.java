@@ -0,0 +1,42 @@
+package com.stdiscm.consumer;
+
+// Wire constants for the framed (v2) upload protocol. A v2 connection starts with MAGIC; anything
+// else is treated as the original one-file-per-connection protocol.
+//
+// Every frame is [type:1][requestId:4][length:4][payload:length]. Request ids are chosen by the
+// producer and tie each reply to the upload it belongs to, so several uploads can be in flight on
+// one connection at once. Partially received uploads are kept per hash, and ACCEPT tells the
+// producer how much of the file the consumer already has.
+public final class UploadProtocol {
+    public static final int MAGIC = 0x4D535632; // "MSV2"
+    public static final int FRAME_HEADER_SIZE = 9;
+    public static final int MAX_CONTROL_PAYLOAD = 256 * 1024;
+
+    // Producer -> consumer
+    public static final byte BEGIN = 0x01;   // name (UTF), hash (UTF), size (long)
+    public static final byte DATA = 0x02;    // offset (long), file bytes starting at that offset
+    public static final byte END = 0x03;     // all bytes sent
+    public static final byte CANCEL = 0x04;  // producer gave up on the upload
+    public static final byte MANIFEST = 0x05; // count (int), then hash (UTF) and size (long) per file
+
+    // Consumer -> producer
+    public static final byte ACCEPT = (byte) 0x81; // offset to continue from (long)
+    public static final byte REJECT = (byte) 0x82; // reason (byte)
+    public static final byte RESULT = (byte) 0x83; // queued (boolean)
+    public static final byte MANIFEST_REPLY = (byte) 0x84; // acceptable now (int), count (int), status per file (byte)
+
+    // Reject reasons
+    public static final byte REJECT_DUPLICATE = 1;
+    public static final byte REJECT_QUEUE_FULL = 2;
+    public static final byte REJECT_INVALID = 3;
+    public static final byte REJECT_BUSY = 4;
+
+    // Manifest entry statuses
+    public static final byte MANIFEST_NEEDED = 0;
+    public static final byte MANIFEST_DUPLICATE = 1;
+    public static final byte MANIFEST_IN_PROGRESS = 2; // being uploaded on another connection
+    public static final byte MANIFEST_INVALID = 3;
+
+    private UploadProtocol() {
+    }
+}
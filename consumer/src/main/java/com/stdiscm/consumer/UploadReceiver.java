@@ -0,0 +1,6 @@
+package com.stdiscm.consumer;
+
+// A server accepting producer connections; run() blocks until stop() is called
+public interface UploadReceiver extends Runnable {
+    void stop();
+}
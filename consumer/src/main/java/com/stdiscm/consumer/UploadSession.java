@@ -0,0 +1,265 @@
+package com.stdiscm.consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+// Protocol state for one producer connection. Receivers push whatever bytes they read into
+// onInput() and write back anything left in getOutput(), so the same session works on top of
+// blocking sockets and asynchronous channels alike.
+public class UploadSession {
+    private static final Logger logger = LoggerFactory.getLogger(UploadSession.class);
+
+    public enum Admission { ACCEPTED, DUPLICATE, QUEUE_FULL, INVALID, BUSY }
+
+    // Resumable spool files are named after the hash, so only allow plain hex digests
+    private static final Pattern RESUMABLE_HASH = Pattern.compile("[0-9a-fA-F]{32,128}");
+
+    private final VideoScheduler videoQueue;
+    private final DedupIndex dedupIndex;
+    private final UploadBudget uploadBudget;
+    private final Path spoolDirectory;
+    private final PartialDigests partialDigests;
+    private final SocketAddress remoteAddress;
+
+    // The first four bytes tell the framed protocol apart from the original one
+    private final ByteBuffer preamble = ByteBuffer.allocate(4);
+    private ByteBuffer output = ByteBuffer.allocate(64);
+    private ProtocolHandler handler;
+    private boolean closed;
+
+    public UploadSession(VideoScheduler videoQueue, DedupIndex dedupIndex, UploadBudget uploadBudget,
+            Path spoolDirectory, PartialDigests partialDigests, SocketAddress remoteAddress) {
+        this.videoQueue = videoQueue;
+        this.dedupIndex = dedupIndex;
+        this.uploadBudget = uploadBudget;
+        this.spoolDirectory = spoolDirectory;
+        this.partialDigests = partialDigests;
+        this.remoteAddress = remoteAddress;
+        this.output.flip();
+    }
+
+    public void onInput(ByteBuffer input) throws IOException {
+        if (handler == null) {
+            while (input.hasRemaining() && preamble.hasRemaining()) {
+                preamble.put(input.get());
+            }
+            if (preamble.hasRemaining()) {
+                return;
+            }
+            preamble.flip();
+            if (preamble.getInt(0) == UploadProtocol.MAGIC) {
+                logger.info("Connection from {} uses the framed protocol", remoteAddress);
+                handler = new FramedUploadHandler(this);
+            } else {
+                handler = new LegacyUploadHandler(this);
+                handler.onInput(preamble);
+            }
+        }
+        if (!closed) {
+            handler.onInput(input);
+        }
+        // Anything after the session has finished is not part of the protocol
+        input.position(input.limit());
+    }
+
+    public ByteBuffer getOutput() {
+        return output;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // A persistent producer connection waiting for its next upload; receivers must not time it out
+    public boolean isIdle() {
+        return handler != null && !closed && handler.isIdle();
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    // Called by the receiver when the connection goes away, cleanly or not
+    public void close() {
+        closed = true;
+        if (handler != null) {
+            handler.close();
+        }
+    }
+
+    // Asks the handler's transport to close the connection once pending output is written
+    void finish() {
+        closed = true;
+    }
+
+    // An accepted upload holds a reservation on its hash until it is published, released or
+    // discarded, and one on its declared size in the upload budget until it has been processed
+    Admission admit(String fileName, String fileHash, long fileSize) {
+        logger.info("Received request to upload: {} (size: {} bytes, hash: {})",
+                fileName, fileSize, fileHash);
+
+        if (fileSize < 0) {
+            logger.warn("Rejecting upload with invalid size: {}", fileName);
+            return Admission.INVALID;
+        }
+
+        // Check if file already exists (by hash) or is being uploaded on another connection
+        switch (dedupIndex.reserve(fileHash)) {
+            case COMMITTED:
+                logger.info("Rejecting duplicate file: {}", fileName);
+                return Admission.DUPLICATE;
+            case RESERVED:
+                logger.warn("Rejecting {}: the same content is being uploaded on another connection", fileName);
+                return Admission.BUSY;
+            default:
+                break;
+        }
+
+        // Check if queue has space, in both files and bytes
+        if (getRemainingCapacity() == 0 || !uploadBudget.tryReserve(fileSize)) {
+            logger.warn("Rejecting upload due to full queue: {} ({} of {} bytes in flight)",
+                    fileName, uploadBudget.getReservedBytes(), uploadBudget.getCapacity());
+            dedupIndex.release(fileHash);
+            return Admission.QUEUE_FULL;
+        }
+
+        return Admission.ACCEPTED;
+    }
+
+    DedupIndex.State lookup(String fileHash) {
+        return dedupIndex.lookup(fileHash);
+    }
+
+    int getRemainingCapacity() {
+        return uploadBudget.isFull() ? 0 : videoQueue.remainingCapacity();
+    }
+
+    SpooledUpload openSpool(String fileName, String fileHash, long fileSize) throws IOException {
+        Path spoolPath = spoolDirectory.resolve(UUID.randomUUID() + ".spool");
+        try {
+            return SpooledUpload.create(fileName, fileHash, fileSize, spoolPath);
+        } catch (IOException | RuntimeException e) {
+            releaseClaim(fileHash, fileSize);
+            throw e;
+        }
+    }
+
+    static boolean isResumableHash(String fileHash) {
+        return RESUMABLE_HASH.matcher(fileHash).matches();
+    }
+
+    // Opens the partial spool file kept for this hash; the reservation taken by admit() keeps other
+    // connections away from it
+    SpooledUpload resumeSpool(String fileName, String fileHash, long fileSize) throws IOException {
+        try {
+            Path spoolPath = spoolDirectory.resolve(fileHash + UploadSessionFactory.PARTIAL_SUFFIX);
+            SpooledUpload upload = SpooledUpload.resume(fileName, fileHash, fileSize, spoolPath, partialDigests);
+            if (upload.getReceived() > 0) {
+                logger.info("Resuming upload of {} at {} of {} bytes", fileName, upload.getReceived(), fileSize);
+            }
+            return upload;
+        } catch (IOException | RuntimeException e) {
+            releaseClaim(fileHash, fileSize);
+            throw e;
+        }
+    }
+
+    // Keeps the bytes received so far so that a later connection can pick up where this one stopped
+    void release(SpooledUpload upload) {
+        try {
+            upload.release();
+            if (upload.getDigest() != null) {
+                partialDigests.save(upload.getFileHash(), upload.getDigest(), upload.getReceived());
+            }
+        } catch (IOException e) {
+            logger.error("Error closing spool file for {}", upload.getFileName(), e);
+        } finally {
+            releaseClaim(upload);
+        }
+    }
+
+    private void releaseClaim(SpooledUpload upload) {
+        releaseClaim(upload.getFileHash(), upload.getFileSize());
+    }
+
+    // The producer host, without the port: a producer opens one connection per thread, and
+    // reconnects on a new port, so each of those must not get a turn of its own
+    private String source() {
+        if (remoteAddress instanceof InetSocketAddress) {
+            InetSocketAddress address = (InetSocketAddress) remoteAddress;
+            return address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostString();
+        }
+        return String.valueOf(remoteAddress);
+    }
+
+    private void releaseClaim(String fileHash, long fileSize) {
+        dedupIndex.release(fileHash);
+        uploadBudget.release(fileSize);
+    }
+
+    // Queues a completely received upload; the spool file is discarded if it cannot be queued
+    boolean queue(SpooledUpload upload) throws IOException {
+        boolean added = false;
+        try {
+            VideoFile videoFile = upload.toVideoFile(source());
+            added = videoQueue.offer(videoFile);
+
+            if (added) {
+                logger.info("Successfully queued file: {}", upload.getFileName());
+            } else {
+                logger.warn("Failed to add file to queue: {}", upload.getFileName());
+            }
+            return added;
+        } finally {
+            // Otherwise both reservations go with the video: the hash is committed once it is
+            // published, and the budget is released once it has been processed
+            if (!added) {
+                discard(upload);
+            }
+        }
+    }
+
+    void discard(SpooledUpload upload) {
+        try {
+            upload.discard();
+        } catch (IOException e) {
+            logger.error("Error discarding spool file for {}", upload.getFileName(), e);
+        } finally {
+            releaseClaim(upload);
+        }
+    }
+
+    // Returns a buffer with room for at least the given number of bytes; callers put into it and
+    // must call flushOutput() afterwards
+    ByteBuffer beginOutput(int bytes) {
+        output.compact();
+        if (output.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + bytes));
+            output.flip();
+            larger.put(output);
+            output = larger;
+        }
+        return output;
+    }
+
+    void flushOutput() {
+        output.flip();
+    }
+
+    interface ProtocolHandler {
+        void onInput(ByteBuffer input) throws IOException;
+
+        // Whether the connection is between uploads, with nothing half received
+        boolean isIdle();
+
+        void close();
+    }
+}
@@ -0,0 +1,39 @@
+package com.stdiscm.consumer;
+
+import java.net.SocketAddress;
+import java.nio.file.Path;
+
+// Shared state handed to every connection, whichever receiver engine accepted it
+public class UploadSessionFactory {
+    // Partially received framed uploads, named <hash>.part, survive disconnects and restarts
+    public static final String PARTIAL_SUFFIX = ".part";
+
+    private final VideoScheduler videoQueue;
+    private final DedupIndex dedupIndex;
+    private final UploadBudget uploadBudget;
+    private final Path spoolDirectory;
+    private final PartialDigests partialDigests;
+
+    public UploadSessionFactory(VideoScheduler videoQueue, DedupIndex dedupIndex,
+            UploadBudget uploadBudget, Path spoolDirectory, PartialDigests partialDigests) {
+        this.videoQueue = videoQueue;
+        this.dedupIndex = dedupIndex;
+        this.uploadBudget = uploadBudget;
+        this.spoolDirectory = spoolDirectory;
+        this.partialDigests = partialDigests;
+    }
+
+    public UploadSession newSession(SocketAddress remoteAddress) {
+        return new UploadSession(videoQueue, dedupIndex, uploadBudget, spoolDirectory, partialDigests, remoteAddress);
+    }
+
+    // Whether a connection is currently uploading this hash, and so may be writing its partial file
+    public boolean isUploadActive(String fileHash) {
+        return dedupIndex.lookup(fileHash) == DedupIndex.State.RESERVED;
+    }
+
+    // Forgets the saved digest of a partial file that was removed
+    public void forgetPartial(String fileHash) {
+        partialDigests.remove(fileHash);
+    }
+}
@@ -1,53 +1,70 @@
 package com.stdiscm.consumer;
 
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.bytedeco.javacv.Frame;
-import org.bytedeco.javacv.Java2DFrameConverter;
 import org.apache.commons.io.FilenameUtils;
 import org.bytedeco.javacv.FFmpegFrameRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
-
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class VideoConsumer implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(VideoConsumer.class);
+    public static final String PREVIEW_SPRITE = "sprite.jpg";
 
     private final int id;
-    private final BlockingQueue<VideoFile> videoQueue;
+    private final VideoScheduler videoQueue;
     private final String uploadDirectory;
     private final String thumbnailDirectory;
-    private final SimpMessagingTemplate messagingTemplate;
-    private final VideoDatabaseService videoDatabaseService;
+    private final VideoPipeline pipeline;
+    private final UploadBudget uploadBudget;
+    private final SegmentTranscoder segmentTranscoder;   // Null when long videos are not split
+    private final HlsPackager hlsPackager;               // Null when videos are served as MP4 only
+    private final DeferredTranscodes deferredTranscodes;
     private final AtomicBoolean running = new AtomicBoolean(true);
+    // Read by ConsumerPool to decide how many consumers to run
+    private volatile boolean busy;
+    // Credited as encoding goes along, so a long video shows progress before it is done; the
+    // segment threads of a long video all add to it
+    private final AtomicLong processedBytes = new AtomicLong();
+    private final AtomicLong videoBytes = new AtomicLong();   // Credited for the current video so far
+    private volatile double bytesPerMicrosecond;              // Of the input being encoded
+    // The deferred video being transcoded while nobody was waiting to watch it, which may give way to
+    // new uploads unless it gets opened meanwhile; yielded once it has been picked to
+    private volatile String yieldableId;
+    private volatile boolean yielded;
 
     // Compression settings
     private final boolean compressVideo = true;
     private final int compressionBitrate = 1000000; // 1 Mbps
     private final String compressionFormat = "mp4";
 
-    public VideoConsumer(int id, BlockingQueue<VideoFile> videoQueue, String uploadDirectory,
-            String thumbnailDirectory, SimpMessagingTemplate messagingTemplate,
-            VideoDatabaseService videoDatabaseService) {
+    public VideoConsumer(int id, VideoScheduler videoQueue, String uploadDirectory,
+            String thumbnailDirectory, VideoPipeline pipeline, UploadBudget uploadBudget,
+            SegmentTranscoder segmentTranscoder, HlsPackager hlsPackager, DeferredTranscodes deferredTranscodes) {
         this.id = id;
         this.videoQueue = videoQueue;
         this.uploadDirectory = uploadDirectory;
         this.thumbnailDirectory = thumbnailDirectory;
-        this.messagingTemplate = messagingTemplate;
-        this.videoDatabaseService = videoDatabaseService;
+        this.pipeline = pipeline;
+        this.uploadBudget = uploadBudget;
+        this.segmentTranscoder = segmentTranscoder;
+        this.hlsPackager = hlsPackager;
+        this.deferredTranscodes = deferredTranscodes;
     }
 
     @Override
@@ -56,11 +73,37 @@ public class VideoConsumer implements Runnable {
 
         while (running.get()) {
             try {
+                // A video someone is waiting to watch goes before the next upload
+                VideoMetadata viewed = deferredTranscodes.pollViewed();
+                if (viewed != null) {
+                    runDeferred(viewed);
+                    continue;
+                }
+
                 // Try to get a video file from the queue, with timeout
                 VideoFile videoFile = videoQueue.poll(1, TimeUnit.SECONDS);
 
                 if (videoFile != null) {
-                    processVideo(videoFile);
+                    busy = true;
+                    videoBytes.set(0);
+                    try {
+                        if (processVideo(videoFile)) {
+                            finishProgress(videoFile.getFileSize());
+                        }
+                    } finally {
+                        busy = false;
+                    }
+                } else {
+                    // The uploads this consumer gave way for are through, so another may give way next
+                    if (yielded) {
+                        yielded = false;
+                        deferredTranscodes.releaseYield();
+                    }
+                    // No uploads waiting, so there is time for videos published untranscoded
+                    VideoMetadata deferred = deferredTranscodes.poll();
+                    if (deferred != null) {
+                        runDeferred(deferred);
+                    }
                 }
             } catch (InterruptedException e) {
                 logger.warn("VideoConsumer {} was interrupted", id);
@@ -71,26 +114,53 @@ public class VideoConsumer implements Runnable {
             }
         }
 
+        if (yielded) {
+            deferredTranscodes.releaseYield();
+        }
         logger.info("VideoConsumer {} stopped", id);
     }
 
-    private void processVideo(VideoFile videoFile) {
+    private void runDeferred(VideoMetadata video) {
+        busy = true;
+        videoBytes.set(0);
+        try {
+            if (transcodeDeferred(video)) {
+                finishProgress(video.getFileSize());
+            }
+        } finally {
+            busy = false;
+            deferredTranscodes.finished(video.getId());
+        }
+    }
+
+    // Transcodes the video and hands it to the later pipeline stages, waiting if they are full;
+    // false if it failed before getting that far
+    private boolean processVideo(VideoFile videoFile) throws InterruptedException {
         String fileName = videoFile.getFileName();
         String fileHash = videoFile.getFileHash();
-        byte[] fileData = videoFile.getFileData();
+        long originalFileSize = videoFile.getFileSize();
 
         logger.info("Consumer {} processing video: {}", id, fileName);
 
+        FrameSampler sampler = null;
+        boolean handedOff = false;
         try {
-            // Save the original video file temporarily
-            String tempPath = saveVideoFile(fileName + ".temp", fileData);
+            // The receiver has already spooled the upload to disk
+            String tempPath = videoFile.getSpoolPath().toString();
             File tempFile = new File(tempPath);
 
-            // Compress video if enabled
+            // The thumbnail and the preview frames are taken from the frames decoded for
+            // compression, so each upload is decoded at most once
+            Path thumbnailPath = Paths.get(thumbnailDirectory, fileHash + ".jpg");
+            Path previewDirPath = Paths.get(thumbnailDirectory, fileHash + "-preview");
+            Files.createDirectories(previewDirPath);
+
+            // Compress video if enabled; with lazy transcoding, the upload is published as it is first
             String savedPath;
             long finalFileSize;
+            boolean deferred = compressVideo && deferredTranscodes.isLazy();
 
-            if (compressVideo) {
+            if (compressVideo && !deferred) {
                 // Create a unique filename for the compressed video
                 String compressedFileName = UUID.randomUUID().toString() + "-" +
                         FilenameUtils.getBaseName(fileName) + "." + compressionFormat;
@@ -98,9 +168,13 @@ public class VideoConsumer implements Runnable {
 
                 // Compress the video
                 logger.info("Consumer {} compressing video: {} (original size: {} bytes)",
-                        id, fileName, fileData.length);
+                        id, fileName, originalFileSize);
 
-                compressVideo(tempPath, compressedPath);
+                sampler = compressVideo(tempPath, compressedPath);
+                if (sampler == null) {
+                    // A stream-copied video was never decoded, so its samples need a pass of their own
+                    sampler = sampleVideo(compressedPath);
+                }
 
                 // Get the size of the compressed file
                 File compressedFile = new File(compressedPath);
@@ -108,53 +182,162 @@ public class VideoConsumer implements Runnable {
 
                 logger.info("Consumer {} compressed video: {} (new size: {} bytes, reduction: {}%)",
                         id, fileName, finalFileSize,
-                        Math.round((1 - ((double) finalFileSize / fileData.length)) * 100));
+                        Math.round((1 - ((double) finalFileSize / originalFileSize)) * 100));
 
                 // Delete the temporary file
                 tempFile.delete();
 
                 savedPath = compressedPath;
             } else {
-                // If compression is disabled, just rename the temp file
+                // If compression is disabled or deferred, decode only as far as the samples go
+                sampler = sampleVideo(tempPath);
+
+                // Then just rename the temp file
                 String finalFileName = UUID.randomUUID().toString() + "-" + fileName;
                 String finalPath = Paths.get(uploadDirectory, finalFileName).toString();
 
-                File finalFile = new File(finalPath);
-                tempFile.renameTo(finalFile);
+                Files.move(tempFile.toPath(), Paths.get(finalPath));
 
                 savedPath = finalPath;
-                finalFileSize = fileData.length;
+                finalFileSize = originalFileSize;
             }
 
-            // Generate thumbnail
-            String thumbnailPath = generateThumbnail(savedPath, fileHash);
-
-            // Generate 10-second preview (extract frames for preview)
-            String previewPath = generatePreview(savedPath, fileHash);
+            // Packaged before publishing, so a published video has its playlist from the start.
+            // An upload published as received is packaged once it is transcoded.
+            if (!deferred) {
+                packageHls(savedPath, fileHash, fileName);
+            }
 
-            // Add to database
-            VideoMetadata metadata = new VideoMetadata(
-                    fileHash,
-                    fileName,
-                    savedPath,
-                    thumbnailPath,
-                    previewPath,
-                    finalFileSize, // Use the compressed file size
-                    videoFile.getUploadTime());
+            // The thumbnail, the 10-second preview sprite and publishing are left to the next stages
+            pipeline.submit(new ProcessedVideo(videoFile, savedPath, finalFileSize, sampler,
+                    thumbnailPath, previewDirPath, !deferred));
+            sampler = null;
+            handedOff = true;
 
-            videoDatabaseService.addVideo(metadata);
+            logger.info("Consumer {} transcoded video: {}", id, fileName);
 
-            // Notify clients via WebSocket
-            messagingTemplate.convertAndSend("/topic/videos", metadata);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("Consumer {} failed to process video: {}", id, fileName, e);
+        } finally {
+            if (sampler != null) {
+                sampler.close();
+            }
+            if (!handedOff) {
+                pipeline.abandon(videoFile);
+            }
+            // Never leave a spooled upload behind, whether processing succeeded or not
+            try {
+                Files.deleteIfExists(videoFile.getSpoolPath());
+            } catch (IOException e) {
+                logger.warn("Consumer {} could not delete spool file: {}", id, videoFile.getSpoolPath(), e);
+            }
+            // With the spool file gone, the upload no longer counts against admission
+            uploadBudget.release(videoFile.getFileSize());
+        }
+        return handedOff;
+    }
 
-            logger.info("Consumer {} successfully processed video: {}", id, fileName);
+    // Transcodes a video that was published with the upload as received, then swaps the catalog
+    // entry over to the result and removes the original; false if it did not get that far
+    private boolean transcodeDeferred(VideoMetadata video) {
+        String fileName = video.getFileName();
+        String originalPath = video.getFilePath();
+        String compressedPath = Paths.get(uploadDirectory, UUID.randomUUID().toString() + "-" +
+                FilenameUtils.getBaseName(fileName) + "." + compressionFormat).toString();
 
+        logger.info("Consumer {} transcoding deferred video: {}", id, fileName);
+        yieldableId = deferredTranscodes.isViewed(video.getId()) ? null : video.getId();
+        try {
+            FrameSampler sampler = compressVideo(originalPath, compressedPath);
+            if (sampler != null) {
+                // The images were written when the video was published
+                sampler.close();
+            }
+            packageHls(compressedPath, video.getId(), fileName);
+
+            // Throws if the swap is not durable, so the original is only removed once no restart
+            // can bring back a catalog entry pointing at it
+            long compressedSize = new File(compressedPath).length();
+            if (deferredTranscodes.complete(video, compressedPath, compressedSize)) {
+                Files.deleteIfExists(Paths.get(originalPath));
+                logger.info("Consumer {} swapped video {} to its transcoded file ({} -> {} bytes)",
+                        id, fileName, video.getFileSize(), compressedSize);
+            } else {
+                Files.deleteIfExists(Paths.get(compressedPath));
+            }
+            return true;
         } catch (Exception e) {
-            logger.error("Consumer {} failed to process video: {}", id, fileName, e);
+            if (isCancellation(e)) {
+                // Publishing new uploads comes first; this one starts over once they are through
+                logger.info("Consumer {} put off transcoding {} for new uploads", id, fileName);
+                deferredTranscodes.retry(video);
+            } else {
+                // The original stays in the catalog, and is tried again after a restart
+                logger.error("Consumer {} failed to transcode deferred video: {}", id, fileName, e);
+            }
+            try {
+                Files.deleteIfExists(Paths.get(compressedPath));
+            } catch (IOException deleteError) {
+                logger.warn("Consumer {} could not delete partial output: {}", id, compressedPath, deleteError);
+            }
+            return false;
+        } finally {
+            yieldableId = null;
+        }
+    }
+
+    // Credits whatever of a finished video the encoder has not reported yet
+    private void finishProgress(long fileSize) {
+        long remaining = fileSize - videoBytes.get();
+        if (remaining > 0) {
+            processedBytes.addAndGet(remaining);
+        }
+    }
+
+    // Whether a deferred transcode should stop for new uploads. Only one consumer at a time does, and
+    // never for a video that has been opened since it started; the threads encoding the segments of
+    // a video all stop once their consumer has been picked.
+    private boolean shouldYield() {
+        String id = yieldableId;
+        if (id == null) {
+            return false;
         }
+        if (yielded) {
+            return true;
+        }
+        if (videoQueue.size() > 0 && deferredTranscodes.claimYield(id)) {
+            yielded = true;
+            return true;
+        }
+        return false;
     }
 
-    private void compressVideo(String inputPath, String outputPath) throws IOException {
+    private static boolean isCancellation(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof CancellationException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The MP4 stays either way, for players without HLS
+    private void packageHls(String videoPath, String fileHash, String fileName) {
+        if (hlsPackager == null) {
+            return;
+        }
+        try {
+            hlsPackager.packageVideo(videoPath, fileHash);
+        } catch (IOException e) {
+            logger.warn("Consumer {} could not package video as HLS: {}", id, fileName, e);
+        }
+    }
+
+    // Transcodes the video, handing the decoded frames to a sampler on the way. A video that is
+    // already small enough in the target codecs is stream-copied instead, and null is returned.
+    private FrameSampler compressVideo(String inputPath, String outputPath) throws IOException {
         File inputFile = new File(inputPath);
         if (!inputFile.exists()) {
             throw new IOException("Input video file not found: " + inputPath);
@@ -163,134 +346,185 @@ public class VideoConsumer implements Runnable {
         try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile)) {
             grabber.start();
 
-            FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(
-                    outputPath,
-                    grabber.getImageWidth(),
-                    grabber.getImageHeight(),
-                    grabber.getAudioChannels());
+            if (canStreamCopy(grabber, inputFile.length())) {
+                logger.info("Consumer {} stream-copying {} video at {} bps", id, grabber.getVideoCodecName(),
+                        grabber.getVideoBitrate());
+                remuxVideo(grabber, outputPath);
+                grabber.stop();
+                return null;
+            }
 
-            // Setup the recorder with compression parameters
-            recorder.setFormat(compressionFormat);
-            recorder.setVideoBitrate(compressionBitrate);
-            recorder.setVideoCodec(org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_H264);
-            recorder.setAudioCodec(grabber.getAudioCodec());
-            recorder.setFrameRate(grabber.getFrameRate());
-            recorder.setSampleRate(grabber.getSampleRate());
+            long duration = grabber.getLengthInTime();
+            bytesPerMicrosecond = duration > 0 ? (double) inputFile.length() / duration : 0;
+            FrameSampler sampler = new FrameSampler(duration);
+            try {
+                if (segmentTranscoder != null && segmentTranscoder.appliesTo(duration)) {
+                    // Long videos are encoded a segment per core, each segment reading the file itself
+                    grabber.stop();
+                    segmentTranscoder.transcode(inputPath, outputPath, duration, sampler, this::encode);
+                } else {
+                    encode(grabber, outputPath, Long.MAX_VALUE, sampler, 0);
+                    grabber.stop();
+                }
+            } catch (Exception e) {
+                sampler.close();
+                throw e;
+            }
+            return sampler;
+        } catch (Exception e) {
+            throw new IOException("Failed to compress video: " + inputPath, e);
+        }
+    }
+
+    // Encodes the grabber's frames from where it stands up to, not including, endTimestamp into a
+    // new file, sampling them before the grabber reuses them. With encoderThreads 0 the encoder
+    // picks its own thread count.
+    private void encode(FFmpegFrameGrabber grabber, String outputPath, long endTimestamp, FrameSampler sampler,
+            int encoderThreads) throws Exception {
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(
+                outputPath,
+                grabber.getImageWidth(),
+                grabber.getImageHeight(),
+                grabber.getAudioChannels());
+
+        // Setup the recorder with compression parameters
+        recorder.setFormat(compressionFormat);
+        recorder.setVideoBitrate(compressionBitrate);
+        recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+        // MP4 players expect AAC; whatever the upload had gets converted
+        recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
+        recorder.setFrameRate(grabber.getFrameRate());
+        recorder.setSampleRate(grabber.getSampleRate());
+        // The index goes at the front, so playback can start before the whole file is loaded
+        recorder.setOption("movflags", "+faststart");
+        if (encoderThreads > 0) {
+            recorder.setVideoOption("threads", Integer.toString(encoderThreads));
+        }
 
-            // Start the recorder
+        try {
             recorder.start();
 
             // Transfer frames from grabber to recorder
             Frame frame;
-            while ((frame = grabber.grab()) != null) {
+            long reachedTimestamp = -1;
+            while ((frame = grabber.grab()) != null && frame.timestamp < endTimestamp) {
+                if (shouldYield()) {
+                    throw new CancellationException("New uploads are waiting");
+                }
+                if (sampler != null) {
+                    sampler.accept(frame);
+                }
                 recorder.record(frame);
+                // The share of the input up to this frame, for ConsumerPool to see progress by
+                if (frame.timestamp > reachedTimestamp) {
+                    if (reachedTimestamp >= 0) {
+                        long bytes = (long) ((frame.timestamp - reachedTimestamp) * bytesPerMicrosecond);
+                        videoBytes.addAndGet(bytes);
+                        processedBytes.addAndGet(bytes);
+                    }
+                    reachedTimestamp = frame.timestamp;
+                }
             }
 
-            // Close the recorder
             recorder.stop();
+        } finally {
             recorder.release();
-
-            grabber.stop();
-        } catch (Exception e) {
-            throw new IOException("Failed to compress video: " + inputPath, e);
         }
     }
 
-    private String saveVideoFile(String fileName, byte[] fileData) throws IOException {
-        Path filePath = Paths.get(uploadDirectory, fileName);
-
-        // Save the file
-        try (FileOutputStream fos = new FileOutputStream(filePath.toFile())) {
-            fos.write(fileData);
+    // Re-encoding H.264 that is already at or below the target bitrate only costs time and
+    // quality, as long as the audio, if any, is AAC too
+    private boolean canStreamCopy(FFmpegFrameGrabber grabber, long fileSize) {
+        if (grabber.getVideoCodec() != avcodec.AV_CODEC_ID_H264 || !hasPlainStreams(grabber.getFormatContext())) {
+            return false;
         }
-
-        return filePath.toString();
-    }
-
-    private String generateThumbnail(String videoPath, String fileHash) throws IOException {
-        File videoFile = new File(videoPath);
-        if (!videoFile.exists()) {
-            throw new IOException("Video file not found: " + videoPath);
+        if (grabber.getAudioChannels() > 0 && grabber.getAudioCodec() != avcodec.AV_CODEC_ID_AAC) {
+            return false;
         }
 
-        String thumbnailFileName = fileHash + ".jpg";
-        Path thumbnailPath = Paths.get(thumbnailDirectory, thumbnailFileName);
-
-        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(videoFile)) {
-            grabber.start();
-
-            // Seek to 1 second into the video for thumbnail
-            grabber.setTimestamp(1000000); // 1 second in microseconds
-            Frame frame = grabber.grabImage();
-
-            if (frame != null) {
-                try (Java2DFrameConverter converter = new Java2DFrameConverter()) {
-                    BufferedImage bufferedImage = converter.convert(frame);
+        long bitrate = grabber.getVideoBitrate();
+        if (bitrate <= 0 && grabber.getLengthInTime() > 0) {
+            // Not in the stream headers; the average over the whole file is an upper bound
+            bitrate = fileSize * 8 * 1000000 / grabber.getLengthInTime();
+        }
+        return bitrate > 0 && bitrate <= compressionBitrate;
+    }
 
-                    // Save the thumbnail
-                    ImageIO.write(bufferedImage, "jpg", thumbnailPath.toFile());
-                }
+    // Whether the input is one video stream and at most one audio stream. The recorder copies
+    // every video or audio packet into its single stream of that kind, so a cover picture or a
+    // second audio track would be mixed in, and other streams have no place in an MP4; such
+    // inputs are transcoded, which only decodes the streams the grabber picked.
+    private static boolean hasPlainStreams(AVFormatContext formatContext) {
+        int video = 0;
+        int audio = 0;
+        for (int i = 0; i < formatContext.nb_streams(); i++) {
+            int type = formatContext.streams(i).codecpar().codec_type();
+            if (type == avutil.AVMEDIA_TYPE_VIDEO) {
+                video++;
+            } else if (type == avutil.AVMEDIA_TYPE_AUDIO) {
+                audio++;
             } else {
-                throw new IOException("Could not grab frame from video: " + videoPath);
+                return false;
             }
-
-            grabber.stop();
-        } catch (Exception e) {
-            throw new IOException("Failed to generate thumbnail for video: " + videoPath, e);
         }
-
-        return thumbnailPath.toString();
+        return video == 1 && audio <= 1;
     }
 
-    private String generatePreview(String videoPath, String fileHash) throws IOException {
-        // Extract frames for preview (we'll actually create a set of preview images for
-        // the frontend)
-        // This implementation extracts 10 frames (one per second) for a 10-second
-        // preview
+    // Copies the compressed packets into a new MP4 without decoding them
+    private void remuxVideo(FFmpegFrameGrabber grabber, String outputPath) throws Exception {
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(
+                outputPath,
+                grabber.getImageWidth(),
+                grabber.getImageHeight(),
+                grabber.getAudioChannels());
+        try {
+            recorder.setFormat(compressionFormat);
+            recorder.setOption("movflags", "+faststart");
+            recorder.start(grabber.getFormatContext());
 
-        File videoFile = new File(videoPath);
-        if (!videoFile.exists()) {
-            throw new IOException("Video file not found: " + videoPath);
-        }
+            AVPacket packet;
+            while ((packet = grabber.grabPacket()) != null) {
+                recorder.recordPacket(packet);
+            }
 
-        // Create a directory for preview frames
-        String previewDirName = fileHash + "-preview";
-        Path previewDirPath = Paths.get(thumbnailDirectory, previewDirName);
-        Files.createDirectories(previewDirPath);
+            recorder.stop();
+        } finally {
+            recorder.release();
+        }
+    }
 
-        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(videoFile)) {
+    // Decodes just the video frames the sampler needs, for when there is no transcode to share
+    private FrameSampler sampleVideo(String inputPath) throws IOException {
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(new File(inputPath))) {
             grabber.start();
+            FrameSampler sampler = new FrameSampler(grabber.getLengthInTime());
 
-            // Check if video is longer than 10 seconds
-            long duration = grabber.getLengthInTime();
-            long previewDuration = Math.min(duration, 10 * 1000000); // 10 seconds in microseconds
-
-            // Extract frames at 1-second intervals
-            try (Java2DFrameConverter converter = new Java2DFrameConverter()) {
-                for (int i = 0; i < 10; i++) {
-                    long timestamp = i * (previewDuration / 10);
-                    grabber.setTimestamp(timestamp);
-
-                    Frame frame = grabber.grabImage();
-                    if (frame != null) {
-                        BufferedImage bufferedImage = converter.convert(frame);
-
-                        // Save the frame
-                        String frameFileName = String.format("frame-%02d.jpg", i);
-                        Path framePath = previewDirPath.resolve(frameFileName);
-                        ImageIO.write(bufferedImage, "jpg", framePath.toFile());
-                    }
-                }
+            Frame frame;
+            while (!sampler.isDone() && (frame = grabber.grabImage()) != null) {
+                sampler.accept(frame);
             }
 
             grabber.stop();
+            return sampler;
         } catch (Exception e) {
-            throw new IOException("Failed to generate preview for video: " + videoPath, e);
+            throw new IOException("Failed to sample video: " + inputPath, e);
         }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public boolean isBusy() {
+        return busy;
+    }
 
-        return previewDirPath.toString();
+    // Upload bytes this consumer has got through, including the part of the current video encoded so far
+    public long getProcessedBytes() {
+        return processedBytes.get();
     }
 
+    // Lets the current video finish, then ends the thread
     public void stop() {
         running.set(false);
     }
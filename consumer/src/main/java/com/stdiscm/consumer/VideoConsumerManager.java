@@ -3,21 +3,19 @@ package com.stdiscm.consumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PreDestroy;
 
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 @Component
@@ -33,41 +31,174 @@ public class VideoConsumerManager {
     @Autowired
     private QueueMonitor queueMonitor;
     
-    private BlockingQueue<VideoFile> videoQueue;
-    private ExecutorService executorService;
-    private Set<String> processedHashes = new HashSet<>();
-    private VideoReceiver videoReceiver;
+    @Autowired
+    private DeferredTranscodes deferredTranscodes;
+    
+    @Value("${media.receiver.engine:async}")
+    private String receiverEngine;
+    
+    @Value("${media.receiver.async-threads:0}")
+    private int receiverThreads;
+    
+    @Value("${media.scheduler:fifo}")
+    private String schedulerMode;
+    
+    @Value("${media.scheduler.aging-seconds:30}")
+    private long agingSeconds;
+    
+    @Value("${media.admission.max-bytes:4294967296}")
+    private long admissionBytes;
+    
+    @Value("${media.consumers.autoscale:true}")
+    private boolean autoscale;
+    
+    @Value("${media.consumers.min-threads:0}")
+    private int minConsumerThreads;
+    
+    @Value("${media.consumers.max-threads:0}")
+    private int maxConsumerThreads;
+    
+    @Value("${media.transcode.segment-threshold-seconds:0}")
+    private long segmentThresholdSeconds;
+    
+    @Value("${media.transcode.segment-seconds:30}")
+    private long segmentSeconds;
+    
+    @Value("${media.hls.enabled:false}")
+    private boolean hlsEnabled;
+    
+    @Value("${media.hls.segment-seconds:4}")
+    private int hlsSegmentSeconds;
+    
+    @Value("${media.hls.ladder-heights:}")
+    private int[] hlsLadderHeights;
+    
+    @Value("${media.pipeline.image-threads:2}")
+    private int imageThreads;
+    
+    @Value("${media.pipeline.publish-threads:4}")
+    private int publishThreads;
+    
+    @Value("${media.pipeline.stage-capacity:16}")
+    private int stageCapacity;
+    
+    private VideoScheduler videoQueue;
+    private ConsumerPool consumerPool;
+    private ForkJoinPool segmentPool;
+    private SegmentTranscoder segmentTranscoder;   // Null when long videos are not split
+    private HlsPackager hlsPackager;               // Null when videos are served as MP4 only
+    private VideoPipeline pipeline;
+    private DedupIndex dedupIndex;
+    private UploadBudget uploadBudget;
+    private UploadReceiver videoReceiver;
     private final String uploadsDir = "uploads";
     private final String thumbnailsDir = "uploads/thumbnails";
+    private final String spoolDir = "uploads/spool";
+    private final String hlsDir = HlsPackager.DIRECTORY;
+    private final String dedupIndexFile = "uploads/dedup.idx";
+    private static final long PARTIAL_UPLOAD_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+    private UploadSessionFactory sessionFactory;
     
     public void initialize(int consumerThreads, int maxQueueSize, int port) {
-        logger.info("Initializing VideoConsumerManager with {} threads, queue size: {}, port: {}", 
-                consumerThreads, maxQueueSize, port);
+        logger.info("Initializing VideoConsumerManager with {} threads, queue size: {}, admission budget: {} bytes, port: {}", 
+                consumerThreads, maxQueueSize, admissionBytes, port);
         
         // Create uploads directory if it doesn't exist
         createDirectories();
         
-        // Initialize queue and thread pool
-        this.videoQueue = new LinkedBlockingQueue<>(maxQueueSize);
-        this.executorService = Executors.newFixedThreadPool(consumerThreads);
+        // Hashes of everything queued before, so duplicates are still caught after a restart
+        try {
+            dedupIndex = new DedupIndex(Paths.get(dedupIndexFile));
+        } catch (IOException e) {
+            logger.error("Failed to open dedup index", e);
+            throw new RuntimeException("Failed to open dedup index", e);
+        }
+        
+        // The stages after transcoding, each with its own threads and bounded queue
+        pipeline = new VideoPipeline(imageThreads, publishThreads, stageCapacity, messagingTemplate,
+                videoDatabaseService, deferredTranscodes, dedupIndex);
+        pipeline.start();
         
-        // Start consumer threads
-        for (int i = 0; i < consumerThreads; i++) {
-            VideoConsumer consumer = new VideoConsumer(i + 1, videoQueue, uploadsDir, thumbnailsDir, 
-                    messagingTemplate, videoDatabaseService);
-            executorService.submit(consumer);
+        // Initialize queue and thread pool; admission is bounded by the bytes in flight as well
+        this.videoQueue = createScheduler(maxQueueSize);
+        this.uploadBudget = new UploadBudget(admissionBytes);
+        
+        // Long videos are split into segments encoded side by side on a pool with a thread per core.
+        // Segments never start before the preview's first 10 seconds are over.
+        if (segmentThresholdSeconds > 0) {
+            segmentPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            segmentTranscoder = new SegmentTranscoder(segmentPool, TimeUnit.SECONDS.toMicros(segmentThresholdSeconds),
+                    TimeUnit.SECONDS.toMicros(Math.max(10, segmentSeconds)));
         }
         
+        // Playlists and short segments next to each MP4, so playback starts after the first segment
+        if (hlsEnabled) {
+            try {
+                hlsPackager = new HlsPackager(Paths.get(hlsDir), Math.max(1, hlsSegmentSeconds), hlsLadderHeights);
+            } catch (IOException e) {
+                logger.error("Failed to create HLS directory", e);
+                throw new RuntimeException("Failed to create HLS directory", e);
+            }
+        }
+        
+        // Start consumer threads, which do the transcoding. The command line gives the starting
+        // count, and the floor unless one is configured; with autoscaling on, the pool moves between
+        // the bounds from there.
+        int minThreads = autoscale && minConsumerThreads > 0 ? minConsumerThreads : consumerThreads;
+        int maxThreads = !autoscale ? consumerThreads
+                : maxConsumerThreads > 0 ? maxConsumerThreads
+                : Math.max(consumerThreads, Runtime.getRuntime().availableProcessors());
+        consumerPool = new ConsumerPool(
+                id -> new VideoConsumer(id, videoQueue, uploadsDir, thumbnailsDir, pipeline, uploadBudget,
+                        segmentTranscoder, hlsPackager, deferredTranscodes),
+                videoQueue, minThreads, maxThreads);
+        consumerPool.start(consumerThreads);
+        logger.info("Started {} consumer threads ({} to {})", consumerPool.size(), minThreads, maxThreads);
+        
         // Start the socket server to receive videos
-        videoReceiver = new VideoReceiver(port, videoQueue, processedHashes);
+        PartialDigests partialDigests = new PartialDigests(Paths.get(spoolDir), dedupIndex);
+        partialDigests.start();
+        sessionFactory = new UploadSessionFactory(videoQueue, dedupIndex, uploadBudget, Paths.get(spoolDir),
+                partialDigests);
+        videoReceiver = createReceiver(port, sessionFactory);
         new Thread(videoReceiver).start();
         
         // Initialize queue monitor
-        queueMonitor.initialize(videoQueue, maxQueueSize);
+        queueMonitor.initialize(videoQueue, maxQueueSize, uploadBudget);
         
         logger.info("VideoConsumerManager initialized successfully");
     }
     
+    private VideoScheduler createScheduler(int maxQueueSize) {
+        // Waiting time is divided by the aging period, which would turn scores into NaN or infinity
+        if (agingSeconds <= 0 && !schedulerMode.equalsIgnoreCase("fifo")) {
+            throw new IllegalArgumentException("media.scheduler.aging-seconds must be positive: " + agingSeconds);
+        }
+        long agingNanos = TimeUnit.SECONDS.toNanos(agingSeconds);
+        switch (schedulerMode.toLowerCase()) {
+            case "fifo":
+                return new FifoScheduler(maxQueueSize);
+            case "sjf":
+                return new ShortestJobFirstScheduler(maxQueueSize, agingNanos);
+            case "fair":
+                return new FairScheduler(maxQueueSize, agingNanos);
+            default:
+                throw new IllegalArgumentException("Unknown scheduler: " + schedulerMode);
+        }
+    }
+    
+    private UploadReceiver createReceiver(int port, UploadSessionFactory sessionFactory) {
+        switch (receiverEngine.toLowerCase()) {
+            case "blocking":
+                return new VideoReceiver(port, sessionFactory);
+            case "async":
+                int threads = receiverThreads > 0 ? receiverThreads : Runtime.getRuntime().availableProcessors();
+                return new AsyncVideoReceiver(port, threads, sessionFactory);
+            default:
+                throw new IllegalArgumentException("Unknown receiver engine: " + receiverEngine);
+        }
+    }
+    
     private void createDirectories() {
         try {
             Path uploadsPath = Paths.get(uploadsDir);
@@ -79,12 +210,64 @@ public class VideoConsumerManager {
             if (!Files.exists(thumbnailsPath)) {
                 Files.createDirectories(thumbnailsPath);
             }
+            
+            Path spoolPath = Paths.get(spoolDir);
+            if (!Files.exists(spoolPath)) {
+                Files.createDirectories(spoolPath);
+            }
+            
+            // Spool files left over from a previous run belong to uploads that were never queued.
+            // Partial framed uploads (*.part) are kept so that producers can resume them.
+            try (DirectoryStream<Path> staleFiles = Files.newDirectoryStream(spoolPath, "*.spool")) {
+                for (Path staleFile : staleFiles) {
+                    Files.deleteIfExists(staleFile);
+                }
+            }
         } catch (IOException e) {
             logger.error("Failed to create directories", e);
             throw new RuntimeException("Failed to create required directories", e);
         }
     }
     
+    // Partial uploads nobody has come back for are removed after a day
+    @Scheduled(fixedRate = 3600000)
+    public void sweepAbandonedUploads() {
+        if (sessionFactory == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - PARTIAL_UPLOAD_TTL_MILLIS;
+        try (DirectoryStream<Path> partials = Files.newDirectoryStream(Paths.get(spoolDir),
+                "*" + UploadSessionFactory.PARTIAL_SUFFIX)) {
+            for (Path partial : partials) {
+                String fileName = partial.getFileName().toString();
+                String fileHash = fileName.substring(0, fileName.length() - UploadSessionFactory.PARTIAL_SUFFIX.length());
+                if (!sessionFactory.isUploadActive(fileHash)
+                        && Files.getLastModifiedTime(partial).toMillis() < cutoff) {
+                    logger.info("Removing abandoned partial upload: {}", fileName);
+                    Files.deleteIfExists(partial);
+                    sessionFactory.forgetPartial(fileHash);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to sweep abandoned uploads", e);
+        }
+    }
+    
+    @Scheduled(fixedRate = 10000)
+    public void autoscaleConsumers() {
+        if (autoscale && consumerPool != null) {
+            consumerPool.autoscale();
+        }
+    }
+    
+    // New entries reach the page cache immediately; this bounds what a power loss could take
+    @Scheduled(fixedRate = 10000)
+    public void flushDedupIndex() {
+        if (dedupIndex != null) {
+            dedupIndex.flush();
+        }
+    }
+    
     @PreDestroy
     public void shutdown() {
         logger.info("Shutting down VideoConsumerManager");
@@ -93,15 +276,21 @@ public class VideoConsumerManager {
             videoReceiver.stop();
         }
         
-        if (executorService != null) {
-            executorService.shutdown();
-            try {
-                if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
-                    executorService.shutdownNow();
-                }
-            } catch (InterruptedException e) {
-                executorService.shutdownNow();
-            }
+        if (consumerPool != null) {
+            consumerPool.shutdown(5000);
+        }
+        
+        if (segmentPool != null) {
+            segmentPool.shutdownNow();
+        }
+        
+        // After the consumers, so whatever they handed over still gets published
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+        
+        if (dedupIndex != null) {
+            dedupIndex.close();
         }
         
         logger.info("VideoConsumerManager shutdown complete");
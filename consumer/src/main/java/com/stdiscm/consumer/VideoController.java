@@ -10,68 +10,199 @@ import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.WebRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 @Controller
 public class VideoController {
 
+    private static final int PAGE_SIZE = 24;
+    private static final int MAX_PAGE_SIZE = 100;
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final Pattern PREVIEW_FRAME = Pattern.compile("[A-Za-z0-9_-]+\\.jpg");
+    private static final Pattern HLS_RENDITION = Pattern.compile("[A-Za-z0-9_-]+");
+    private static final Pattern HLS_FILE = Pattern.compile("[A-Za-z0-9_-]+\\.(m3u8|ts)");
+    private static final MediaType HLS_PLAYLIST = MediaType.parseMediaType("application/vnd.apple.mpegurl");
+    private static final MediaType HLS_SEGMENT = MediaType.parseMediaType("video/mp2t");
+    private static final String PLAYLIST_CACHE = "public, max-age=60";
+
     @Autowired
     private VideoDatabaseService videoDatabaseService;
     
+    @Autowired
+    private VideoStreamer videoStreamer;
+    
+    @Autowired
+    private ImageCache imageCache;
+    
+    @Autowired
+    private DeferredTranscodes deferredTranscodes;
+    
+    // Only the newest page is rendered here; the page fetches the rest from /api/videos as the
+    // user scrolls
     @GetMapping("/")
     public String index(Model model) {
-        model.addAttribute("videos", videoDatabaseService.getAllVideos());
+        VideoPage page = videoDatabaseService.getVideos(null, PAGE_SIZE);
+        model.addAttribute("videos", page.getVideos());
+        model.addAttribute("nextCursor", page.getNextCursor());
+        model.addAttribute("videoCount", videoDatabaseService.getVideoCount());
         return "index";
     }
     
+    @GetMapping("/api/videos")
+    @ResponseBody
+    public ResponseEntity<VideoPage> listVideos(@RequestParam(required = false) String cursor,
+                                                @RequestParam(defaultValue = "" + PAGE_SIZE) int limit) {
+        try {
+            // Oversized pages are cut down; a limit below 1 is rejected by the service
+            return ResponseEntity.ok(videoDatabaseService.getVideos(cursor, Math.min(limit, MAX_PAGE_SIZE)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    // Supports byte ranges and conditional requests, so seeking and repeat views only fetch what
+    // the player is missing
     @GetMapping("/video/{id}")
-    public ResponseEntity<Resource> serveVideo(@PathVariable String id) {
+    public ResponseEntity<?> serveVideo(@PathVariable String id, HttpServletRequest request,
+                                        HttpServletResponse response) throws IOException {
         VideoMetadata metadata = videoDatabaseService.getVideo(id);
         if (metadata == null) {
             return ResponseEntity.notFound().build();
         }
         
         File file = new File(metadata.getFilePath());
-        Resource resource = new FileSystemResource(file);
+        if (!file.isFile() && !metadata.isTranscoded()) {
+            // The original may have been swapped for its transcoded file just now
+            metadata = videoDatabaseService.getVideo(id);
+            file = new File(metadata.getFilePath());
+        }
+        if (!file.isFile()) {
+            return ResponseEntity.notFound().build();
+        }
         
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + metadata.getFileName() + "\"")
-                .contentType(MediaType.parseMediaType("video/mp4"))
-                .body(resource);
+        // The first view of a video published as received gets it transcoded next
+        if (!metadata.isTranscoded()) {
+            deferredTranscodes.prioritize(id);
+        }
+        
+        return videoStreamer.stream(metadata, file, request, response);
     }
     
     @GetMapping("/thumbnail/{id}")
-    public ResponseEntity<Resource> serveThumbnail(@PathVariable String id) {
+    public ResponseEntity<byte[]> serveThumbnail(@PathVariable String id, WebRequest request) throws IOException {
         VideoMetadata metadata = videoDatabaseService.getVideo(id);
         if (metadata == null) {
             return ResponseEntity.notFound().build();
         }
         
-        File file = new File(metadata.getThumbnailPath());
-        Resource resource = new FileSystemResource(file);
+        return serveImage(new File(metadata.getThumbnailPath()), "\"" + id + "-thumbnail\"", request);
+    }
+    
+    // The whole hover preview as one sprite strip of equally sized frames
+    @GetMapping("/preview/{id}")
+    public ResponseEntity<byte[]> servePreview(@PathVariable String id, WebRequest request) throws IOException {
+        VideoMetadata metadata = videoDatabaseService.getVideo(id);
+        if (metadata == null) {
+            return ResponseEntity.notFound().build();
+        }
         
-        return ResponseEntity.ok()
-                .contentType(MediaType.IMAGE_JPEG)
-                .body(resource);
+        return serveImage(new File(metadata.getPreviewPath(), VideoConsumer.PREVIEW_SPRITE),
+                "\"" + id + "-sprite\"", request);
     }
     
+    // Single frames of previews made before sprites were introduced
     @GetMapping("/preview/{id}/{frame}")
-    public ResponseEntity<Resource> servePreviewFrame(@PathVariable String id, @PathVariable String frame) {
+    public ResponseEntity<byte[]> servePreviewFrame(@PathVariable String id, @PathVariable String frame,
+                                                    WebRequest request) throws IOException {
         VideoMetadata metadata = videoDatabaseService.getVideo(id);
-        if (metadata == null) {
+        if (metadata == null || !PREVIEW_FRAME.matcher(frame).matches()) {
             return ResponseEntity.notFound().build();
         }
         
-        File file = new File(metadata.getPreviewPath(), frame);
-        if (!file.exists()) {
+        return serveImage(new File(metadata.getPreviewPath(), frame), "\"" + id + "-" + frame + "\"", request);
+    }
+    
+    // HLS playlists and segments, for players that start after the first few seconds are in rather
+    // than after the MP4 is indexed. Videos processed without HLS have no playlist and get a 404.
+    @GetMapping("/hls/{id}/{file}")
+    public ResponseEntity<Resource> serveHlsPlaylist(@PathVariable String id, @PathVariable String file,
+                                                     WebRequest request) {
+        if (!HlsPackager.MASTER_PLAYLIST.equals(file)) {
+            return ResponseEntity.notFound().build();
+        }
+        return serveHls(id, Paths.get(HlsPackager.DIRECTORY, id, file), "\"" + id + "-" + file + "\"", request);
+    }
+    
+    @GetMapping("/hls/{id}/{rendition}/{file}")
+    public ResponseEntity<Resource> serveHlsFile(@PathVariable String id, @PathVariable String rendition,
+                                                 @PathVariable String file, WebRequest request) {
+        if (!HLS_RENDITION.matcher(rendition).matches() || !HLS_FILE.matcher(file).matches()) {
+            return ResponseEntity.notFound().build();
+        }
+        return serveHls(id, Paths.get(HlsPackager.DIRECTORY, id, rendition, file),
+                "\"" + id + "-" + rendition + "-" + file + "\"", request);
+    }
+    
+    @GetMapping("/api/image-cache")
+    @ResponseBody
+    public Map<String, Object> imageCacheStats() {
+        return imageCache.getStats();
+    }
+    
+    // Segments never change once written. Playlists don't either, but are kept for a short while
+    // only, so a video that gets packaged later is picked up.
+    private ResponseEntity<Resource> serveHls(String id, Path path, String etag, WebRequest request) {
+        if (videoDatabaseService.getVideo(id) == null) {
             return ResponseEntity.notFound().build();
         }
         
-        Resource resource = new FileSystemResource(file);
+        File file = path.toFile();
+        if (!file.isFile()) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
+        
+        boolean playlist = file.getName().endsWith(".m3u8");
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CACHE_CONTROL, playlist ? PLAYLIST_CACHE : IMMUTABLE)
+                .eTag(etag)
+                .header(HttpHeaders.CONTENT_DISPOSITION, "inline")
+                .contentType(playlist ? HLS_PLAYLIST : HLS_SEGMENT)
+                .contentLength(file.length())
+                .body(new FileSystemResource(file));
+    }
+    
+    // Images are generated once per content hash and never change, so browsers may keep them for
+    // good and only need to ask again if they dropped them
+    private ResponseEntity<byte[]> serveImage(File file, String etag, WebRequest request) throws IOException {
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
+        
+        byte[] image = imageCache.get(file);
+        if (image == null) {
+            return ResponseEntity.notFound().build();
+        }
         
         return ResponseEntity.ok()
+                .header(HttpHeaders.CACHE_CONTROL, IMMUTABLE)
+                .eTag(etag)
                 .contentType(MediaType.IMAGE_JPEG)
-                .body(resource);
+                .body(image);
     }
 }
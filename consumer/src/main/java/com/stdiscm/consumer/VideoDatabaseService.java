@@ -1,20 +1,83 @@
 package com.stdiscm.consumer;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 @Service
 public class VideoDatabaseService {
+    private static final Logger logger = LoggerFactory.getLogger(VideoDatabaseService.class);
+    private static final int SNAPSHOT_EVERY = 10000;   // Log records between snapshots
     
     private final Map<String, VideoMetadata> videos = new ConcurrentHashMap<>();
+    // The same videos, newest first, so pages can be read off without sorting
+    private final ConcurrentSkipListMap<TimeKey, VideoMetadata> byUploadTime = new ConcurrentSkipListMap<>();
+    private final String catalogDir = "uploads/catalog";
+    private CatalogLog catalogLog;
+    
+    // Reloads the catalog from the last snapshot and the log written since
+    @PostConstruct
+    public void recover() {
+        long start = System.currentTimeMillis();
+        try {
+            catalogLog = new CatalogLog(Paths.get(catalogDir), SNAPSHOT_EVERY);
+            catalogLog.recover(this::index);
+        } catch (IOException e) {
+            logger.error("Failed to recover video catalog", e);
+            throw new RuntimeException("Failed to recover video catalog", e);
+        }
+        catalogLog.start();
+        logger.info("Loaded {} videos in {} ms", videos.size(), System.currentTimeMillis() - start);
+    }
+    
+    // Returns once the video is on disk as well. If it cannot be persisted, it is taken out of the
+    // catalog again and this throws, so it is not shown now only to be gone after a restart.
+    public void addVideo(VideoMetadata video) throws IOException {
+        index(video);
+        try {
+            catalogLog.append(video);
+        } catch (IOException e) {
+            unindex(video);
+            throw e;
+        } catch (InterruptedException e) {
+            unindex(video);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while persisting video " + video.getId(), e);
+        }
+    }
     
-    public void addVideo(VideoMetadata video) {
-        videos.put(video.getId(), video);
+    // Points a video at its transcoded file once deferred transcoding is done. The entry is replaced
+    // whole, so readers see either the original file or the transcoded one, never a mix of the two,
+    // and only once the new record is on disk: if that fails, this throws and the catalog, here and
+    // after a restart, still points at the original.
+    public VideoMetadata replaceFile(String id, String filePath, long fileSize) throws IOException {
+        VideoMetadata current = videos.get(id);
+        if (current == null) {
+            return null;
+        }
+        VideoMetadata updated = new VideoMetadata(id, current.getFileName(), filePath, current.getThumbnailPath(),
+                current.getPreviewPath(), fileSize, current.getUploadTime(), true);
+        try {
+            catalogLog.append(updated);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while persisting video " + id, e);
+        }
+        index(updated);
+        return updated;
     }
     
     public VideoMetadata getVideo(String id) {
@@ -22,13 +85,111 @@ public class VideoDatabaseService {
     }
     
     public List<VideoMetadata> getAllVideos() {
-        List<VideoMetadata> videoList = new ArrayList<>(videos.values());
-        // Sort by upload time (most recent first)
-        Collections.sort(videoList, (v1, v2) -> v2.getUploadTime().compareTo(v1.getUploadTime()));
-        return videoList;
+        return new ArrayList<>(byUploadTime.values());
+    }
+    
+    // Returns up to limit videos uploaded before the one the cursor points at (or the newest ones
+    // without a cursor); costs O(log n + limit) however large the catalog is. A malformed cursor or a
+    // limit below 1 is an IllegalArgumentException.
+    public VideoPage getVideos(String cursor, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + limit);
+        }
+        NavigableMap<TimeKey, VideoMetadata> remaining = cursor == null
+                ? byUploadTime : byUploadTime.tailMap(TimeKey.parse(cursor), false);
+        
+        List<VideoMetadata> page = new ArrayList<>(Math.min(limit, 1024));
+        TimeKey last = null;
+        for (Map.Entry<TimeKey, VideoMetadata> entry : remaining.entrySet()) {
+            if (page.size() == limit) {
+                return new VideoPage(page, last.toCursor());
+            }
+            page.add(entry.getValue());
+            last = entry.getKey();
+        }
+        return new VideoPage(page, null);
+    }
+    
+    public int getVideoCount() {
+        return videos.size();
     }
     
     public boolean hasVideo(String id) {
         return videos.containsKey(id);
     }
+    
+    private void index(VideoMetadata video) {
+        VideoMetadata previous = videos.put(video.getId(), video);
+        // Put first: a replaced video usually keeps its key, and must not drop off its page meanwhile
+        TimeKey key = new TimeKey(video);
+        byUploadTime.put(key, video);
+        if (previous != null && !key.equals(new TimeKey(previous))) {
+            byUploadTime.remove(new TimeKey(previous));
+        }
+    }
+    
+    private void unindex(VideoMetadata video) {
+        videos.remove(video.getId(), video);
+        byUploadTime.remove(new TimeKey(video), video);
+    }
+    
+    @PreDestroy
+    public void close() {
+        if (catalogLog != null) {
+            catalogLog.close();
+        }
+    }
+    
+    // Orders videos newest first, by id among videos uploaded at the same instant. Cursors are the
+    // key of the last video on a page, as "<epoch seconds>.<nanos>.<id>".
+    private static class TimeKey implements Comparable<TimeKey> {
+        final long epochSecond;
+        final int nano;
+        final String id;
+        
+        TimeKey(VideoMetadata video) {
+            this(video.getUploadTime().toEpochSecond(ZoneOffset.UTC), video.getUploadTime().getNano(), video.getId());
+        }
+        
+        TimeKey(long epochSecond, int nano, String id) {
+            this.epochSecond = epochSecond;
+            this.nano = nano;
+            this.id = id;
+        }
+        
+        static TimeKey parse(String cursor) {
+            String[] parts = cursor.split("\\.", 3);
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            try {
+                return new TimeKey(Long.parseLong(parts[0]), Integer.parseInt(parts[1]), parts[2]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+            }
+        }
+        
+        String toCursor() {
+            return epochSecond + "." + nano + "." + id;
+        }
+        
+        @Override
+        public int compareTo(TimeKey other) {
+            int result = Long.compare(other.epochSecond, epochSecond);
+            if (result == 0) {
+                result = Integer.compare(other.nano, nano);
+            }
+            return result != 0 ? result : id.compareTo(other.id);
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TimeKey && compareTo((TimeKey) o) == 0;
+        }
+        
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+    }
 }
@@ -1,17 +1,22 @@
 package com.stdiscm.consumer;
 
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 
 public class VideoFile {
     private final String fileName;
     private final String fileHash;
-    private final byte[] fileData;
+    private final Path spoolPath;     // Upload contents, spooled to disk by the receiver
+    private final long fileSize;
+    private final String source;      // Producer host the upload came from
     private final LocalDateTime uploadTime;
     
-    public VideoFile(String fileName, String fileHash, byte[] fileData) {
+    public VideoFile(String fileName, String fileHash, Path spoolPath, long fileSize, String source) {
         this.fileName = fileName;
         this.fileHash = fileHash;
-        this.fileData = fileData;
+        this.spoolPath = spoolPath;
+        this.fileSize = fileSize;
+        this.source = source;
         this.uploadTime = LocalDateTime.now();
     }
     
@@ -23,8 +28,16 @@ public class VideoFile {
         return fileHash;
     }
     
-    public byte[] getFileData() {
-        return fileData;
+    public Path getSpoolPath() {
+        return spoolPath;
+    }
+    
+    public long getFileSize() {
+        return fileSize;
+    }
+    
+    public String getSource() {
+        return source;
     }
     
     public LocalDateTime getUploadTime() {
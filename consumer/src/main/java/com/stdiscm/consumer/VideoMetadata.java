@@ -10,9 +10,10 @@ public class VideoMetadata {
     private final String previewPath;
     private final long fileSize;
     private final LocalDateTime uploadTime;
+    private final boolean transcoded;   // False while the upload as received is served, awaiting a transcode
     
     public VideoMetadata(String id, String fileName, String filePath, String thumbnailPath, 
-                        String previewPath, long fileSize, LocalDateTime uploadTime) {
+                        String previewPath, long fileSize, LocalDateTime uploadTime, boolean transcoded) {
         this.id = id;
         this.fileName = fileName;
         this.filePath = filePath;
@@ -20,6 +21,7 @@ public class VideoMetadata {
         this.previewPath = previewPath;
         this.fileSize = fileSize;
         this.uploadTime = uploadTime;
+        this.transcoded = transcoded;
     }
     
     public String getId() {
@@ -50,6 +52,10 @@ public class VideoMetadata {
         return uploadTime;
     }
     
+    public boolean isTranscoded() {
+        return transcoded;
+    }
+    
     public String getRelativeFilePath() {
         return filePath.substring(filePath.lastIndexOf("uploads"));
     }
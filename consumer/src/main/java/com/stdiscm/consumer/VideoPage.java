@@ -0,0 +1,22 @@
+package com.stdiscm.consumer;
+
+import java.util.List;
+
+// One page of the catalog, newest first, and the cursor to pass in for the page after it
+public class VideoPage {
+    private final List<VideoMetadata> videos;
+    private final String nextCursor;    // null on the last page
+    
+    public VideoPage(List<VideoMetadata> videos, String nextCursor) {
+        this.videos = videos;
+        this.nextCursor = nextCursor;
+    }
+    
+    public List<VideoMetadata> getVideos() {
+        return videos;
+    }
+    
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
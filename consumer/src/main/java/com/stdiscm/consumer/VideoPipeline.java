@@ -0,0 +1,145 @@
+package com.stdiscm.consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// The stages after transcoding. Consumer threads do the CPU-heavy encoding and hand each video
+// on; writing its images and publishing it to the catalog and the browsers happen on separate,
+// independently sized pools, so the encoders are not kept waiting on disk writes and fsyncs.
+//
+//   video queue -> transcode (consumer threads) -> images -> publish
+//
+// With lazy transcoding the transcode step only moves the upload into place, and videos published
+// that way are handed to DeferredTranscodes to be transcoded later.
+public class VideoPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(VideoPipeline.class);
+    private static final long STOP_TIMEOUT_MILLIS = 10000;
+
+    private final SimpMessagingTemplate messagingTemplate;
+    private final VideoDatabaseService videoDatabaseService;
+    private final DeferredTranscodes deferredTranscodes;
+    private final DedupIndex dedupIndex;
+    private final PipelineStage<ProcessedVideo> imageStage;
+    private final PipelineStage<VideoMetadata> publishStage;
+
+    public VideoPipeline(int imageThreads, int publishThreads, int stageCapacity,
+                         SimpMessagingTemplate messagingTemplate, VideoDatabaseService videoDatabaseService,
+                         DeferredTranscodes deferredTranscodes, DedupIndex dedupIndex) {
+        this.messagingTemplate = messagingTemplate;
+        this.videoDatabaseService = videoDatabaseService;
+        this.deferredTranscodes = deferredTranscodes;
+        this.dedupIndex = dedupIndex;
+        this.imageStage = new PipelineStage<>("images", imageThreads, stageCapacity, this::writeImages,
+                video -> video.getVideoFile().getFileHash() + " (" + video.getVideoFile().getFileName() + ")");
+        // Several publishers let the catalog log commit their appends together
+        this.publishStage = new PipelineStage<>("publish", publishThreads, stageCapacity, this::publish,
+                metadata -> metadata.getId() + " (" + metadata.getFileName() + ")");
+    }
+
+    public void start() {
+        publishStage.start();
+        imageStage.start();
+    }
+
+    // Blocks while the image stage is full
+    void submit(ProcessedVideo video) throws InterruptedException {
+        imageStage.put(video);
+    }
+
+    // Gives up on a video that will not be published, so the same content can be uploaded again
+    void abandon(VideoFile videoFile) {
+        dedupIndex.release(videoFile.getFileHash());
+    }
+
+    public int getImageBacklog() {
+        return imageStage.size();
+    }
+
+    public int getPublishBacklog() {
+        return publishStage.size();
+    }
+
+    // Stops each stage once the one before it has drained into it
+    public void stop() {
+        imageStage.stop(STOP_TIMEOUT_MILLIS);
+        publishStage.stop(STOP_TIMEOUT_MILLIS);
+    }
+
+    // A video whose images cannot be written is published without them; the image endpoints
+    // answer 404 for it, and the video itself is fine to watch
+    private void writeImages(ProcessedVideo video) throws Exception {
+        VideoFile videoFile = video.getVideoFile();
+        FrameSampler sampler = video.getSampler();
+        Path thumbnail = video.getThumbnailPath();
+        Path sprite = video.getPreviewPath().resolve(VideoConsumer.PREVIEW_SPRITE);
+        try {
+            try {
+                sampler.writeThumbnail(thumbnail.toFile());
+            } catch (Exception e) {
+                logger.error("Failed to write thumbnail for video: {}", videoFile.getFileName(), e);
+                deletePartial(thumbnail);
+            }
+            try {
+                sampler.writePreview(sprite.toFile());
+            } catch (Exception e) {
+                logger.error("Failed to write preview for video: {}", videoFile.getFileName(), e);
+                deletePartial(sprite);
+            }
+        } finally {
+            sampler.close();
+        }
+
+        publishStage.put(new VideoMetadata(
+                videoFile.getFileHash(),
+                videoFile.getFileName(),
+                video.getSavedPath(),
+                video.getThumbnailPath().toString(),
+                video.getPreviewPath().toString(),
+                video.getFileSize(),
+                videoFile.getUploadTime(),
+                video.isTranscoded()));
+    }
+
+    // A half-written image must not be served, but failing to remove one does not stop the video
+    private static void deletePartial(Path image) {
+        try {
+            Files.deleteIfExists(image);
+        } catch (IOException e) {
+            logger.warn("Failed to delete partial image {}", image, e);
+        }
+    }
+
+    private void publish(VideoMetadata metadata) {
+        try {
+            videoDatabaseService.addVideo(metadata);
+        } catch (IOException | RuntimeException e) {
+            // Not in the catalog, so the reservation must not outlive this: like abandon(), release it
+            // so the same content can be uploaded again rather than be turned away as BUSY
+            logger.error("Failed to publish video: {}", metadata.getFileName(), e);
+            dedupIndex.release(metadata.getId());
+            return;
+        }
+        // Only now is the content remembered for good; until here a failure lets it be uploaded again
+        try {
+            dedupIndex.commit(metadata.getId());
+        } catch (IOException e) {
+            // The video is published all the same; it just is not remembered as a duplicate
+            logger.error("Error recording hash of {} in the dedup index", metadata.getFileName(), e);
+            dedupIndex.release(metadata.getId());
+        }
+        // Only once it is in the catalog, where the consumer that picks it up looks it up
+        if (!metadata.isTranscoded()) {
+            deferredTranscodes.add(metadata);
+        }
+
+        // Notify clients via WebSocket
+        messagingTemplate.convertAndSend("/topic/videos", metadata);
+
+        logger.info("Successfully processed video: {}", metadata.getFileName());
+    }
+}
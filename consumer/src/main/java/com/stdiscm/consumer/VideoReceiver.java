@@ -3,32 +3,31 @@ package com.stdiscm.consumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-public class VideoReceiver implements Runnable {
+// Thread-per-connection receiver on blocking sockets
+public class VideoReceiver implements UploadReceiver {
     private static final Logger logger = LoggerFactory.getLogger(VideoReceiver.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
     
     private final int port;
-    private final BlockingQueue<VideoFile> videoQueue;
-    private final Set<String> processedHashes;
+    private final UploadSessionFactory sessionFactory;
     private final AtomicBoolean running = new AtomicBoolean(true);
     private ServerSocket serverSocket;
     private ExecutorService connectionHandlers;
     
-    public VideoReceiver(int port, BlockingQueue<VideoFile> videoQueue, Set<String> processedHashes) {
+    public VideoReceiver(int port, UploadSessionFactory sessionFactory) {
         this.port = port;
-        this.videoQueue = videoQueue;
-        this.processedHashes = processedHashes;
+        this.sessionFactory = sessionFactory;
         this.connectionHandlers = Executors.newCachedThreadPool();
     }
     
@@ -63,64 +62,32 @@ public class VideoReceiver implements Runnable {
     private void handleClientConnection(Socket clientSocket) {
         logger.info("Handling connection from {}", clientSocket.getRemoteSocketAddress());
         
-        try (DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
-             DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream())) {
-            
-            // Read file metadata
-            String fileName = dis.readUTF();
-            String fileHash = dis.readUTF();
-            long fileSize = dis.readLong();
-            
-            logger.info("Received request to upload: {} (size: {} bytes, hash: {})", 
-                    fileName, fileSize, fileHash);
-            
-            // Check if file already exists (by hash)
-            boolean isDuplicate = false;
-            synchronized (processedHashes) {
-                isDuplicate = processedHashes.contains(fileHash);
-            }
-            
-            if (isDuplicate) {
-                logger.info("Rejecting duplicate file: {}", fileName);
-                dos.writeBoolean(false); // Reject the upload
-                dos.flush();
-                return;
-            }
-            
-            // Check if queue has space
-            boolean queueHasSpace = videoQueue.remainingCapacity() > 0;
-            dos.writeBoolean(queueHasSpace);
-            dos.flush();
-            
-            if (!queueHasSpace) {
-                logger.warn("Rejecting upload due to full queue: {}", fileName);
-                return;
-            }
-            
-            // Read the file data
-            byte[] fileData = new byte[(int) fileSize];
-            dis.readFully(fileData);
-            
-            // Create VideoFile object and add to queue
-            VideoFile videoFile = new VideoFile(fileName, fileHash, fileData);
-            boolean added = videoQueue.offer(videoFile);
-            
-            // Send result
-            dos.writeBoolean(added);
-            dos.flush();
+        UploadSession session = sessionFactory.newSession(clientSocket.getRemoteSocketAddress());
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        
+        try (InputStream in = clientSocket.getInputStream();
+             OutputStream out = clientSocket.getOutputStream()) {
             
-            if (added) {
-                synchronized (processedHashes) {
-                    processedHashes.add(fileHash);
+            while (!session.isClosed()) {
+                int read = in.read(buffer);
+                if (read == -1) {
+                    break;
+                }
+                session.onInput(ByteBuffer.wrap(buffer, 0, read));
+                
+                // Send any responses the session produced
+                ByteBuffer output = session.getOutput();
+                if (output.hasRemaining()) {
+                    out.write(output.array(), output.position(), output.remaining());
+                    out.flush();
+                    output.position(output.limit());
                 }
-                logger.info("Successfully queued file: {}", fileName);
-            } else {
-                logger.warn("Failed to add file to queue: {}", fileName);
             }
             
         } catch (IOException e) {
             logger.error("Error handling client connection", e);
         } finally {
+            session.close();
             try {
                 clientSocket.close();
             } catch (IOException e) {
@@ -129,6 +96,7 @@ public class VideoReceiver implements Runnable {
         }
     }
     
+    @Override
     public void stop() {
         running.set(false);
         closeServerSocket();
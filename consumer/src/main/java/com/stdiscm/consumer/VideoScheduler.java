@@ -0,0 +1,103 @@
+package com.stdiscm.consumer;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Holds the uploaded videos waiting for a consumer thread and decides which one goes next. Like
+// the queue it replaces it is bounded by a file count: offer() refuses instead of blocking, and
+// poll() waits up to a timeout. Subclasses only keep their own ordering; they are always called
+// with the lock held.
+public abstract class VideoScheduler {
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private int count;
+
+    protected VideoScheduler(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public boolean offer(VideoFile videoFile) {
+        lock.lock();
+        try {
+            if (count == capacity) {
+                return false;
+            }
+            add(new Entry(videoFile, System.nanoTime()));
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public VideoFile poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            count--;
+            return next(System.nanoTime()).videoFile;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected abstract void add(Entry entry);
+
+    // Removes and returns the entry to process next; only called when there is one
+    protected abstract Entry next(long now);
+
+    // Removes the entry with the smallest declared size, where every agingNanos spent waiting
+    // halves the size it is judged by. A large upload therefore still gets its turn after a
+    // bounded number of aging periods, however many small ones keep arriving.
+    protected static Entry takeShortest(List<Entry> entries, long now, long agingNanos) {
+        int best = 0;
+        double bestScore = Double.MAX_VALUE;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            double score = entry.videoFile.getFileSize() * Math.pow(0.5, (double) (now - entry.queuedAt) / agingNanos);
+            if (score < bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        return entries.remove(best);
+    }
+
+    protected static class Entry {
+        final VideoFile videoFile;
+        final long queuedAt;
+
+        Entry(VideoFile videoFile, long queuedAt) {
+            this.videoFile = videoFile;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
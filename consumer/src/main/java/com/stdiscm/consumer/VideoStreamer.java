@@ -0,0 +1,196 @@
+package com.stdiscm.consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Serves video files with validators and byte ranges. Whole files and single ranges are handed to
+// Tomcat's sendfile support, so the bytes go from the page cache to the socket without passing
+// through the JVM; multiple ranges are written here as multipart/byteranges.
+@Component
+public class VideoStreamer {
+    private static final Logger logger = LoggerFactory.getLogger(VideoStreamer.class);
+    private static final CacheControl CACHE_CONTROL = CacheControl.maxAge(1, TimeUnit.HOURS).cachePublic();
+    // Below this, copying through the response buffer is cheaper than setting up sendfile
+    private static final long SENDFILE_MIN_BYTES = 48 * 1024;
+
+    // Tomcat's request attributes for sendfile (org.apache.catalina.Globals)
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    // Writes the response itself and returns null, except for a 416 which is returned
+    public ResponseEntity<?> stream(VideoMetadata metadata, File file, HttpServletRequest request,
+                                    HttpServletResponse response) throws IOException {
+        // The id is the content hash of the upload, so it makes a strong validator once the upload
+        // is transcoded. An upload served as received gets a version of its own, so ranges and
+        // cached copies of it are never mixed up with the transcoded file that replaces it.
+        String etag = "\"" + metadata.getId() + (metadata.isTranscoded() ? "" : "-original") + "\"";
+        long lastModified = file.lastModified();
+        long length = file.length();
+        // Transcoded files are MP4, but an upload served as received keeps its own container
+        MediaType contentType = MediaTypeFactory.getMediaType(file.getName())
+                .orElse(MediaType.APPLICATION_OCTET_STREAM);
+
+        ServletWebRequest webRequest = new ServletWebRequest(request, response);
+        if (webRequest.checkNotModified(etag, lastModified)) {
+            return null;
+        }
+
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        // Browsers check back on an original on every view, to pick up the swap
+        response.setHeader(HttpHeaders.CACHE_CONTROL, metadata.isTranscoded()
+                ? CACHE_CONTROL.getHeaderValue() : CacheControl.noCache().cachePublic().getHeaderValue());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + metadata.getFileName() + "\"");
+
+        List<HttpRange> ranges = getRanges(request, etag, lastModified);
+        long[] starts = new long[ranges.size()];
+        long[] ends = new long[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            try {
+                starts[i] = ranges.get(i).getRangeStart(length);
+                ends[i] = ranges.get(i).getRangeEnd(length);
+            } catch (IllegalArgumentException e) {
+                return notSatisfiable(length);
+            }
+            if (starts[i] >= length || starts[i] > ends[i]) {
+                return notSatisfiable(length);
+            }
+        }
+        boolean head = "HEAD".equals(request.getMethod());
+
+        if (ranges.size() > 1) {
+            writeMultipart(file, length, contentType, starts, ends, response, head);
+            return null;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        if (ranges.size() == 1) {
+            start = starts[0];
+            end = ends[0];
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+        }
+        long count = end - start + 1;
+        response.setContentType(contentType.toString());
+        response.setContentLengthLong(count);
+        if (head) {
+            return null;
+        }
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED)) && count >= SENDFILE_MIN_BYTES) {
+            request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end + 1);
+        } else {
+            logger.debug("Serving {} bytes of {} without sendfile", count, metadata.getId());
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                copyRange(channel, start, count, response.getOutputStream());
+            }
+        }
+        return null;
+    }
+
+    // Writes several ranges as one multipart/byteranges response; sendfile can only send a single
+    // region, so these are copied
+    private void writeMultipart(File file, long length, MediaType contentType, long[] starts, long[] ends,
+                                HttpServletResponse response, boolean head) throws IOException {
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        byte[][] partHeaders = new byte[starts.length][];
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        long contentLength = closing.length;
+        for (int i = 0; i < starts.length; i++) {
+            partHeaders[i] = ((i > 0 ? "\r\n" : "") + "--" + boundary + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Range: bytes " + starts[i] + "-" + ends[i] + "/" + length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            contentLength += partHeaders[i].length + ends[i] - starts[i] + 1;
+        }
+
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if (head) {
+            return;
+        }
+        OutputStream out = response.getOutputStream();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < starts.length; i++) {
+                out.write(partHeaders[i]);
+                copyRange(channel, starts[i], ends[i] - starts[i] + 1, out);
+            }
+        }
+        out.write(closing);
+    }
+
+    private static void copyRange(FileChannel channel, long start, long count, OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        long position = start;
+        long end = start + count;
+        while (position < end) {
+            long transferred = channel.transferTo(position, end - position, target);
+            if (transferred <= 0) {
+                throw new IOException("Video file ended early");
+            }
+            position += transferred;
+        }
+    }
+
+    // The ranges asked for, or none if there is no usable Range header or If-Range no longer matches
+    private List<HttpRange> getRanges(HttpServletRequest request, String etag, long lastModified) {
+        String range = request.getHeader(HttpHeaders.RANGE);
+        if (range == null) {
+            return List.of();
+        }
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange != null && !ifRange.equals(etag)) {
+            long ifRangeDate;
+            try {
+                ifRangeDate = request.getDateHeader(HttpHeaders.IF_RANGE);
+            } catch (IllegalArgumentException e) {
+                ifRangeDate = -1;   // Some other entity tag
+            }
+            if (ifRangeDate == -1 || lastModified / 1000 > ifRangeDate / 1000) {
+                return List.of();
+            }
+        }
+        try {
+            return HttpRange.parseRanges(range);
+        } catch (IllegalArgumentException e) {
+            // A Range header that cannot be parsed is ignored
+            return List.of();
+        }
+    }
+
+    private ResponseEntity<?> notSatisfiable(long length) {
+        return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length).build();
+    }
+}
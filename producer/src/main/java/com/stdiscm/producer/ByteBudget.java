@@ -0,0 +1,32 @@
+package com.stdiscm.producer;
+
+// Caps the number of file bytes in flight across all upload workers. A file larger than the whole
+// budget may still go, but only on its own.
+public class ByteBudget {
+    private final long capacity;
+    private long available;
+
+    public ByteBudget(long capacity) {
+        this.capacity = capacity;
+        this.available = capacity;
+    }
+
+    // Blocks until the bytes are available and returns how much was taken, to be released later
+    public synchronized long acquire(long bytes) throws InterruptedException {
+        long amount = Math.min(bytes, capacity);
+        while (available < amount) {
+            wait();
+        }
+        available -= amount;
+        return amount;
+    }
+
+    public synchronized void release(long amount) {
+        available += amount;
+        notifyAll();
+    }
+
+    public synchronized long getInFlight() {
+        return capacity - available;
+    }
+}
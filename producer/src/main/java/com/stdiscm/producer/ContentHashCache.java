@@ -0,0 +1,65 @@
+package com.stdiscm.producer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// MD5 hashes of video files, remembered in the upload journal for as long as the file keeps its
+// size and modification time, so that files offered again (e.g. after a full queue or a restart)
+// are not read from disk again
+public class ContentHashCache {
+    private static final Logger logger = LoggerFactory.getLogger(ContentHashCache.class);
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private final UploadJournal journal;
+
+    public ContentHashCache(UploadJournal journal) {
+        this.journal = journal;
+    }
+
+    // Returns the hex MD5 of the file, or an empty string if it could not be read
+    public String getHash(File file) {
+        String cached = journal.getHash(file);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Taken before reading, so a file that changes while being hashed is hashed again next time
+        long size = file.length();
+        long lastModified = file.lastModified();
+        try {
+            String hash = calculateMD5(file);
+            journal.recordHash(file, size, lastModified, hash);
+            return hash;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            logger.error("Error calculating MD5 for file: {}", file.getName(), e);
+            return "";
+        }
+    }
+
+    private static String calculateMD5(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        // A direct buffer lets the channel read without an extra copy through the heap
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+        }
+        byte[] digest = md.digest();
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,80 @@
+package com.stdiscm.producer;
+
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Watches one directory and feeds the video files that are ready into the shared upload queue
+public class DirectoryScanner implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryScanner.class);
+    private static final Set<String> VIDEO_EXTENSIONS = new HashSet<>();
+    private static final long SETTLE_MILLIS = 2000;          // Unchanged this long before a file is uploaded
+    private static final long POLL_RESCAN_MILLIS = 5000;     // Directory rescans without a WatchService
+    private static final long WATCH_RESCAN_MILLIS = 60000;   // Safety rescans with a WatchService
+    
+    static {
+        VIDEO_EXTENSIONS.add("mp4");
+        VIDEO_EXTENSIONS.add("avi");
+        VIDEO_EXTENSIONS.add("mov");
+        VIDEO_EXTENSIONS.add("mkv");
+        VIDEO_EXTENSIONS.add("wmv");
+        VIDEO_EXTENSIONS.add("flv");
+        VIDEO_EXTENSIONS.add("webm");
+    }
+    
+    private final String directoryPath;
+    private final UploadQueue uploadQueue;
+    private final boolean watchDirectory;
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    
+    public DirectoryScanner(String directoryPath, UploadQueue uploadQueue, boolean watchDirectory) {
+        this.directoryPath = directoryPath;
+        this.uploadQueue = uploadQueue;
+        this.watchDirectory = watchDirectory;
+    }
+    
+    @Override
+    public void run() {
+        logger.info("Scanner started - monitoring directory: {}", directoryPath);
+        
+        Path directory = Paths.get(directoryPath);
+        if (!Files.exists(directory) || !Files.isDirectory(directory)) {
+            logger.error("Scanner - Directory does not exist: {}", directoryPath);
+            return;
+        }
+        
+        try (DirectoryWatcher watcher = new DirectoryWatcher(directory, this::isVideoFile, watchDirectory,
+                SETTLE_MILLIS, watchDirectory ? WATCH_RESCAN_MILLIS : POLL_RESCAN_MILLIS)) {
+            while (running.get()) {
+                for (File file : watcher.awaitReadyFiles(WATCH_RESCAN_MILLIS)) {
+                    if (uploadQueue.add(file)) {
+                        logger.debug("Scanner - Queued for upload: {}", file);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("Scanner for {} encountered an error", directoryPath, e);
+        }
+        
+        logger.info("Scanner for {} stopped", directoryPath);
+    }
+    
+    private boolean isVideoFile(Path file) {
+        String extension = FilenameUtils.getExtension(file.getFileName().toString()).toLowerCase();
+        return VIDEO_EXTENSIONS.contains(extension);
+    }
+    
+    public void stop() {
+        running.set(false);
+    }
+}
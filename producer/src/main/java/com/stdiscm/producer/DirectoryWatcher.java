@@ -0,0 +1,191 @@
+package com.stdiscm.producer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+// Finds files in a directory that are ready to upload. With a WatchService, new and modified files
+// are picked up as soon as the OS reports them, and a slow full rescan only covers missed events.
+// Without one, the directory is rescanned on every poll interval.
+//
+// A file only counts as ready once its size and modification time have stayed the same for the
+// settle time, so files that are still being copied in are not uploaded half-written.
+public class DirectoryWatcher implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    private final Path directory;
+    private final Predicate<Path> filter;
+    private final long settleMillis;
+    private final long rescanMillis;
+    private final Map<Path, Observation> candidates = new HashMap<>();
+    private final Map<Path, Observation> reported = new HashMap<>(); // Ready files already returned
+    private WatchService watchService;
+    private long nextRescan;
+
+    public DirectoryWatcher(Path directory, Predicate<Path> filter, boolean useWatchService,
+            long settleMillis, long rescanMillis) {
+        this.directory = directory;
+        this.filter = filter;
+        this.settleMillis = settleMillis;
+        this.rescanMillis = rescanMillis;
+
+        if (useWatchService) {
+            try {
+                watchService = directory.getFileSystem().newWatchService();
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            } catch (IOException | UnsupportedOperationException e) {
+                logger.warn("Cannot watch {}, falling back to polling: {}", directory, e.toString());
+                watchService = null;
+            }
+        }
+    }
+
+    // Waits up to maxWaitMillis for files to settle and returns those that did, possibly none
+    public List<File> awaitReadyFiles(long maxWaitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now >= nextRescan) {
+                rescan();
+                nextRescan = now + rescanMillis;
+            }
+
+            List<File> ready = collectReadyFiles(now);
+            if (!ready.isEmpty() || now >= deadline) {
+                return ready;
+            }
+
+            // Sleep until something can change: an event, a candidate settling, a rescan or the deadline
+            long wakeUp = Math.min(deadline, nextRescan);
+            if (!candidates.isEmpty()) {
+                wakeUp = Math.min(wakeUp, now + settleMillis);
+            }
+            long waitMillis = Math.max(1, wakeUp - now);
+
+            if (watchService == null) {
+                Thread.sleep(waitMillis);
+                continue;
+            }
+
+            WatchKey key = watchService.poll(waitMillis, TimeUnit.MILLISECONDS);
+            if (key != null) {
+                processEvents(key);
+            }
+        }
+    }
+
+    private void processEvents(WatchKey key) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were dropped, so the directory listing is the only reliable source
+                nextRescan = 0;
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                candidates.remove(path);
+                reported.remove(path);
+            } else if (filter.test(path)) {
+                observe(path);
+            }
+        }
+        if (!key.reset()) {
+            logger.warn("Directory {} can no longer be watched, falling back to polling", directory);
+            closeWatchService();
+        }
+    }
+
+    private void rescan() {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path path : entries) {
+                if (filter.test(path) && !candidates.containsKey(path) && !isUnchangedSinceReported(path)) {
+                    observe(path);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Error scanning directory {}", directory, e);
+        }
+    }
+
+    private boolean isUnchangedSinceReported(Path path) {
+        Observation seen = reported.get(path);
+        File file = path.toFile();
+        return seen != null && file.length() == seen.size && file.lastModified() == seen.lastModified;
+    }
+
+    private void observe(Path path) {
+        File file = path.toFile();
+        if (file.isFile()) {
+            candidates.put(path, new Observation(file.length(), file.lastModified(), System.currentTimeMillis()));
+        }
+    }
+
+    private List<File> collectReadyFiles(long now) {
+        List<File> ready = new ArrayList<>();
+        Iterator<Map.Entry<Path, Observation>> it = candidates.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Observation> entry = it.next();
+            File file = entry.getKey().toFile();
+            Observation observation = entry.getValue();
+
+            if (!file.isFile()) {
+                it.remove();
+            } else if (file.length() != observation.size || file.lastModified() != observation.lastModified) {
+                // Still being written; start the settle time over
+                entry.setValue(new Observation(file.length(), file.lastModified(), now));
+            } else if (now - observation.observedAt >= settleMillis) {
+                ready.add(file);
+                reported.put(entry.getKey(), observation);
+                it.remove();
+            }
+        }
+        return ready;
+    }
+
+    @Override
+    public void close() {
+        closeWatchService();
+    }
+
+    private void closeWatchService() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.error("Error closing watch service for {}", directory, e);
+            }
+            watchService = null;
+        }
+    }
+
+    private static class Observation {
+        final long size;
+        final long lastModified;
+        final long observedAt;
+
+        Observation(long size, long lastModified, long observedAt) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.observedAt = observedAt;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.stdiscm.producer;
+
+// The consumer's answer to a manifest: a status per offered file, in the order they were sent,
+// and how many uploads it can take right now
+public class ManifestReply {
+    private final int acceptable;
+    private final byte[] statuses;
+
+    public ManifestReply(int acceptable, byte[] statuses) {
+        this.acceptable = acceptable;
+        this.statuses = statuses;
+    }
+
+    public int getAcceptable() {
+        return acceptable;
+    }
+
+    public int size() {
+        return statuses.length;
+    }
+
+    public byte getStatus(int index) {
+        return statuses[index];
+    }
+}
@@ -0,0 +1,92 @@
+package com.stdiscm.producer;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// An upload that has been offered on an UploadConnection and is waiting for the consumer's replies
+public class PendingUpload {
+    public enum Decision { ACCEPTED, DUPLICATE, QUEUE_FULL, INVALID, BUSY }
+
+    private final int requestId;
+    private final String fileName;
+    private final long fileSize;
+    private final CompletableFuture<Decision> decision = new CompletableFuture<>();
+    private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+    private volatile long resumeOffset;
+
+    public PendingUpload(int requestId, String fileName, long fileSize) {
+        this.requestId = requestId;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    // How many bytes the consumer already has from an earlier, interrupted upload
+    public long getResumeOffset() {
+        return resumeOffset;
+    }
+
+    // Whether the consumer wants the file data
+    public Decision awaitDecision(long timeoutSeconds) throws IOException, InterruptedException {
+        return await(decision, timeoutSeconds, "decision");
+    }
+
+    // Whether the consumer queued the file once all of its data arrived
+    public boolean awaitResult(long timeoutSeconds) throws IOException, InterruptedException {
+        return await(result, timeoutSeconds, "result");
+    }
+
+    // Runs once the upload is over, whether the consumer answered or the connection failed
+    public void whenFinished(Runnable action) {
+        result.whenComplete((value, error) -> action.run());
+    }
+
+    void accept(long offset) {
+        resumeOffset = offset;
+        decision.complete(Decision.ACCEPTED);
+    }
+
+    // A REJECT can also come after the ACCEPT, when the data sent does not fit what the consumer
+    // has; the upload then ends there without being queued
+    void reject(Decision value) {
+        decision.complete(value);
+        result.complete(false);
+    }
+
+    void completeResult(boolean value) {
+        result.complete(value);
+    }
+
+    void fail(IOException e) {
+        decision.completeExceptionally(e);
+        result.completeExceptionally(e);
+    }
+
+    private <T> T await(CompletableFuture<T> future, long timeoutSeconds, String what)
+            throws IOException, InterruptedException {
+        try {
+            return future.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Upload of " + fileName + " failed", e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out waiting for " + what + " on " + fileName, e);
+        }
+    }
+}
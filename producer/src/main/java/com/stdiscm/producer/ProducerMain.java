@@ -4,6 +4,8 @@ import org.apache.commons.cli.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
@@ -20,7 +22,7 @@ public class ProducerMain {
         Option pOpt = Option.builder("p")
                 .longOpt("producers")
                 .hasArg()
-                .desc("Number of producer threads")
+                .desc("Number of upload threads, shared by all directories")
                 .type(Number.class)
                 .required(true)
                 .build();
@@ -49,10 +51,37 @@ public class ProducerMain {
                 .required(true)
                 .build();
         
+        Option scanModeOpt = Option.builder("s")
+                .longOpt("scan-mode")
+                .hasArg()
+                .desc("How to find new files: 'watch' (file system events, default) or 'poll'")
+                .type(String.class)
+                .required(false)
+                .build();
+        
+        Option inFlightOpt = Option.builder("b")
+                .longOpt("max-inflight-mb")
+                .hasArg()
+                .desc("Most file data, in MB, being sent at once across all upload threads (default 256)")
+                .type(Number.class)
+                .required(false)
+                .build();
+        
+        Option journalOpt = Option.builder("j")
+                .longOpt("journal")
+                .hasArg()
+                .desc("File recording hashes and uploaded files across restarts (default producer-journal.log)")
+                .type(String.class)
+                .required(false)
+                .build();
+        
         options.addOption(pOpt);
         options.addOption(hostOpt);
         options.addOption(portOpt);
         options.addOption(dirOpt);
+        options.addOption(scanModeOpt);
+        options.addOption(inFlightOpt);
+        options.addOption(journalOpt);
         
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
@@ -86,25 +115,63 @@ public class ProducerMain {
             System.exit(1);
             return;
         }
+        String scanMode = cmd.getOptionValue("s", "watch");
+        if (!scanMode.equals("watch") && !scanMode.equals("poll")) {
+            System.out.println("Invalid scan mode: " + scanMode);
+            formatter.printHelp("producer", options);
+            System.exit(1);
+            return;
+        }
+        long maxInFlightMb;
+        try {
+            maxInFlightMb = cmd.hasOption("b") ? ((Number)cmd.getParsedOptionValue("b")).longValue() : 256;
+        } catch (ParseException e) {
+            System.out.println("Error parsing in-flight limit: " + e.getMessage());
+            formatter.printHelp("producer", options);
+            System.exit(1);
+            return;
+        }
+        if (numProducers < 1 || maxInFlightMb < 1) {
+            System.out.println("Producer count and in-flight limit must be at least 1");
+            formatter.printHelp("producer", options);
+            System.exit(1);
+            return;
+        }
         String directoriesStr = cmd.getOptionValue("d");
         String[] directories = directoriesStr.split(",");
         
-        if (directories.length < numProducers) {
-            logger.error("Number of directories ({}) must be at least the number of producers ({})", 
-                    directories.length, numProducers);
+        logger.info("Starting {} upload threads for {} directories, connecting to {}:{}", 
+                numProducers, directories.length, consumerHost, consumerPort);
+        
+        UploadJournal journal;
+        try {
+            journal = new UploadJournal(Paths.get(cmd.getOptionValue("j", "producer-journal.log")));
+        } catch (IOException e) {
+            logger.error("Could not open upload journal", e);
             System.exit(1);
             return;
         }
         
-        logger.info("Starting {} producer threads, connecting to {}:{}", 
-                numProducers, consumerHost, consumerPort);
+        // Scanners feed one shared queue that all upload threads take from
+        UploadQueue uploadQueue = new UploadQueue(journal);
+        ByteBudget byteBudget = new ByteBudget(maxInFlightMb * 1024 * 1024);
+        ContentHashCache hashCache = new ContentHashCache(journal);
+        
+        ExecutorService scannerExecutor = Executors.newFixedThreadPool(directories.length);
+        List<DirectoryScanner> scanners = new ArrayList<>();
+        for (String directory : directories) {
+            DirectoryScanner scanner = new DirectoryScanner(directory.trim(), uploadQueue, scanMode.equals("watch"));
+            scanners.add(scanner);
+            scannerExecutor.submit(scanner);
+        }
         
         // Create and start producer threads
         ExecutorService executor = Executors.newFixedThreadPool(numProducers);
         List<VideoProducer> producers = new ArrayList<>();
         
         for (int i = 0; i < numProducers; i++) {
-            VideoProducer producer = new VideoProducer(i + 1, directories[i], consumerHost, consumerPort);
+            VideoProducer producer = new VideoProducer(i + 1, uploadQueue, byteBudget, hashCache,
+                    consumerHost, consumerPort);
             producers.add(producer);
             executor.submit(producer);
         }
@@ -112,6 +179,10 @@ public class ProducerMain {
         // Shutdown hook to gracefully terminate producers
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             logger.info("Shutting down producers...");
+            for (DirectoryScanner scanner : scanners) {
+                scanner.stop();
+            }
+            scannerExecutor.shutdownNow();
             for (VideoProducer producer : producers) {
                 producer.stop();
             }
@@ -123,6 +194,7 @@ public class ProducerMain {
             } catch (InterruptedException e) {
                 executor.shutdownNow();
             }
+            journal.close();
             logger.info("Producers shutdown complete");
         }));
         
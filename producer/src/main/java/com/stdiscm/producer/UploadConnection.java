@@ -0,0 +1,256 @@
+package com.stdiscm.producer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A long-lived framed connection to the consumer. Uploads are pipelined: the caller can offer the
+// next file before earlier ones have been acknowledged, and a reader thread matches each reply to
+// its upload by request id. Frames are written by a single caller thread.
+public class UploadConnection implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(UploadConnection.class);
+
+    private final SocketChannel channel;
+    private final ByteBuffer dataHeader = ByteBuffer.allocate(UploadProtocol.FRAME_HEADER_SIZE + 8);
+    private final Map<Integer, PendingUpload> pending = new ConcurrentHashMap<>();
+    private final Map<Integer, CompletableFuture<ManifestReply>> pendingManifests = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private volatile boolean open = true;
+
+    public UploadConnection(String host, int port) throws IOException {
+        this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+        this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        writeFully(ByteBuffer.allocate(4).putInt(UploadProtocol.MAGIC).flip());
+
+        Thread reader = new Thread(this::readReplies, "upload-connection-" + channel.socket().getLocalPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    // Offers a file to the consumer without waiting for its answer
+    public PendingUpload begin(String fileName, String fileHash, long fileSize) throws IOException {
+        PendingUpload upload = new PendingUpload(nextRequestId.incrementAndGet(), fileName, fileSize);
+        pending.put(upload.getRequestId(), upload);
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(payload);
+        dos.writeUTF(fileName);
+        dos.writeUTF(fileHash);
+        dos.writeLong(fileSize);
+
+        writeFrame(UploadProtocol.BEGIN, upload.getRequestId(), payload.toByteArray());
+        return upload;
+    }
+
+    // Asks the consumer which of these files it needs, in one round trip
+    public ManifestReply exchangeManifest(List<String> fileHashes, List<Long> fileSizes, long timeoutSeconds)
+            throws IOException, InterruptedException {
+        int requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<ManifestReply> reply = new CompletableFuture<>();
+        pendingManifests.put(requestId, reply);
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(payload);
+        dos.writeInt(fileHashes.size());
+        for (int i = 0; i < fileHashes.size(); i++) {
+            dos.writeUTF(fileHashes.get(i));
+            dos.writeLong(fileSizes.get(i));
+        }
+
+        try {
+            writeFrame(UploadProtocol.MANIFEST, requestId, payload.toByteArray());
+            return reply.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw new IOException("Manifest exchange failed", e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out waiting for manifest reply", e);
+        } finally {
+            pendingManifests.remove(requestId);
+        }
+    }
+
+    // Sends the part of the file the consumer does not have yet in DATA frames, followed by END.
+    // Each frame carries its file offset so the consumer can check it continues where it left off.
+    // The file bytes go from the page cache to the socket with transferTo (sendfile on Linux), so
+    // they never pass through the Java heap.
+    public void sendFile(PendingUpload upload, File file) throws IOException {
+        long offset = upload.getResumeOffset();
+        if (offset > 0) {
+            logger.info("Resuming {} at {} of {} bytes", upload.getFileName(), offset, upload.getFileSize());
+        }
+
+        try (FileChannel data = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (offset < upload.getFileSize()) {
+                int frameLength = (int) Math.min(upload.getFileSize() - offset, UploadProtocol.MAX_DATA_PAYLOAD);
+                dataHeader.clear();
+                dataHeader.put(UploadProtocol.DATA).putInt(upload.getRequestId()).putInt(8 + frameLength);
+                dataHeader.putLong(offset);
+                writeFully(dataHeader.flip());
+
+                transferFully(data, offset, frameLength, upload.getFileName());
+                offset += frameLength;
+            }
+        }
+
+        writeControlFrame(UploadProtocol.END, upload.getRequestId());
+    }
+
+    public void cancel(PendingUpload upload) throws IOException {
+        writeControlFrame(UploadProtocol.CANCEL, upload.getRequestId());
+        pending.remove(upload.getRequestId());
+    }
+
+    private void writeFrame(byte type, int requestId, byte[] payload) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(UploadProtocol.FRAME_HEADER_SIZE + payload.length);
+        frame.put(type).putInt(requestId).putInt(payload.length).put(payload);
+        writeFully(frame.flip());
+    }
+
+    private void writeControlFrame(byte type, int requestId) throws IOException {
+        writeFully(ByteBuffer.allocate(UploadProtocol.FRAME_HEADER_SIZE).put(type).putInt(requestId).putInt(0).flip());
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        if (!open) {
+            throw new IOException("Connection to consumer is closed");
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void transferFully(FileChannel data, long position, long count, String fileName) throws IOException {
+        while (count > 0) {
+            long transferred = data.transferTo(position, count, channel);
+            if (transferred == 0 && position >= data.size()) {
+                throw new EOFException(fileName + " is shorter than its declared size");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private void readReplies() {
+        ByteBuffer header = ByteBuffer.allocate(UploadProtocol.FRAME_HEADER_SIZE);
+        try {
+            while (open) {
+                header.clear();
+                readFully(header);
+                byte type = header.get(0);
+                int requestId = header.getInt(1);
+                ByteBuffer payload = ByteBuffer.allocate(header.getInt(5));
+                readFully(payload);
+                payload.flip();
+
+                if (type == UploadProtocol.MANIFEST_REPLY) {
+                    completeManifest(requestId, payload);
+                    continue;
+                }
+
+                PendingUpload upload = pending.get(requestId);
+                if (upload == null) {
+                    logger.warn("Reply for unknown request {}", requestId);
+                    continue;
+                }
+
+                switch (type) {
+                    case UploadProtocol.ACCEPT:
+                        upload.accept(payload.getLong(0));
+                        break;
+                    case UploadProtocol.REJECT:
+                        pending.remove(requestId);
+                        upload.reject(toDecision(payload.get(0)));
+                        break;
+                    case UploadProtocol.RESULT:
+                        pending.remove(requestId);
+                        upload.completeResult(payload.get(0) != 0);
+                        break;
+                    default:
+                        logger.warn("Unknown reply type {} for request {}", type, requestId);
+                }
+            }
+        } catch (IOException e) {
+            if (open) {
+                logger.info("Connection to consumer closed: {}", e.toString());
+            }
+        } finally {
+            open = false;
+            IOException closed = new IOException("Connection to consumer closed");
+            for (PendingUpload upload : pending.values()) {
+                upload.fail(closed);
+            }
+            pending.clear();
+            for (CompletableFuture<ManifestReply> reply : pendingManifests.values()) {
+                reply.completeExceptionally(closed);
+            }
+        }
+    }
+
+    private void completeManifest(int requestId, ByteBuffer payload) {
+        CompletableFuture<ManifestReply> reply = pendingManifests.get(requestId);
+        if (reply == null) {
+            logger.warn("Manifest reply for unknown request {}", requestId);
+            return;
+        }
+        int acceptable = payload.getInt();
+        byte[] statuses = new byte[payload.getInt()];
+        payload.get(statuses);
+        reply.complete(new ManifestReply(acceptable, statuses));
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static PendingUpload.Decision toDecision(byte reason) {
+        switch (reason) {
+            case UploadProtocol.REJECT_DUPLICATE:
+                return PendingUpload.Decision.DUPLICATE;
+            case UploadProtocol.REJECT_QUEUE_FULL:
+                return PendingUpload.Decision.QUEUE_FULL;
+            case UploadProtocol.REJECT_BUSY:
+                return PendingUpload.Decision.BUSY;
+            default:
+                return PendingUpload.Decision.INVALID;
+        }
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error closing connection to consumer", e);
+        }
+    }
+}
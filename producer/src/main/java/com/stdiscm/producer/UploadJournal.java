@@ -0,0 +1,173 @@
+package com.stdiscm.producer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// On-disk record of what the producer knows about each file: its MD5 and whether the consumer
+// has it or turned it down as invalid. Entries are keyed by path and only count while the file keeps the size and modification
+// time it had when it was hashed, so a restart can skip unchanged files without reading them.
+//
+// The journal is an append-only text file, one "outcome size mtime hash path" line per change
+// (tab separated, the last line for a path wins). It is rewritten with only the live entries once
+// superseded lines outnumber them. Lines are flushed but not forced to disk: losing the tail after
+// a crash only means some files are hashed or offered again, which the consumer deduplicates.
+public class UploadJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(UploadJournal.class);
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    public enum Outcome { HASHED, UPLOADED, DUPLICATE, INVALID }
+
+    private final Path journalPath;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private BufferedWriter writer;
+    private int records;
+
+    public UploadJournal(Path journalPath) throws IOException {
+        this.journalPath = journalPath;
+        load();
+        if (records > entries.size()) {
+            compact();
+        } else {
+            writer = openWriter();
+        }
+        logger.info("Upload journal {} loaded with {} files", journalPath, entries.size());
+    }
+
+    // Returns the recorded hash if the file has not changed since, otherwise null
+    public String getHash(File file) {
+        Entry entry = currentEntry(file);
+        return entry == null ? null : entry.hash;
+    }
+
+    // Whether the file, as it is now, was uploaded, found to be on the consumer already, or rejected
+    // as invalid; none of those change by offering it again
+    public boolean isProcessed(File file) {
+        Entry entry = currentEntry(file);
+        return entry != null && entry.outcome != Outcome.HASHED;
+    }
+
+    public void recordHash(File file, long size, long lastModified, String hash) {
+        record(file.getAbsolutePath(), new Entry(size, lastModified, hash, Outcome.HASHED));
+    }
+
+    // Records the outcome against the version of the file that was hashed
+    public void recordOutcome(File file, Outcome outcome) {
+        String path = file.getAbsolutePath();
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            record(path, new Entry(entry.size, entry.lastModified, entry.hash, outcome));
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        } catch (IOException e) {
+            logger.warn("Error closing upload journal {}", journalPath, e);
+        }
+    }
+
+    private Entry currentEntry(File file) {
+        Entry entry = entries.get(file.getAbsolutePath());
+        if (entry == null || entry.size != file.length() || entry.lastModified != file.lastModified()) {
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void record(String path, Entry entry) {
+        entries.put(path, entry);
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(format(path, entry));
+            writer.flush();
+            records++;
+            if (records > MIN_COMPACT_RECORDS && records > 2 * entries.size()) {
+                writer.close();
+                compact();
+            }
+        } catch (IOException e) {
+            // Keep going without the journal rather than stop uploading
+            logger.error("Error writing upload journal {}, no longer recording", journalPath, e);
+            close();
+        }
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(journalPath)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                records++;
+                String[] fields = line.split("\t", 5);
+                try {
+                    entries.put(fields[4], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            fields[3], Outcome.valueOf(fields[0])));
+                } catch (RuntimeException e) {
+                    // Most likely a line cut short by a crash
+                    logger.warn("Skipping unreadable upload journal line: {}", line);
+                }
+            }
+        }
+    }
+
+    // Rewrites the journal with one line per file that still exists and switches to the new file
+    private void compact() throws IOException {
+        entries.keySet().removeIf(path -> !new File(path).isFile());
+
+        Path tempPath = Paths.get(journalPath + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.write(format(entry.getKey(), entry.getValue()));
+            }
+        }
+        Files.move(tempPath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = entries.size();
+        writer = openWriter();
+    }
+
+    private BufferedWriter openWriter() throws IOException {
+        return Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static String format(String path, Entry entry) {
+        return entry.outcome + "\t" + entry.size + "\t" + entry.lastModified + "\t" + entry.hash + "\t" + path + "\n";
+    }
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final String hash;
+        final Outcome outcome;
+
+        Entry(long size, long lastModified, String hash, Outcome outcome) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.outcome = outcome;
+        }
+    }
+}
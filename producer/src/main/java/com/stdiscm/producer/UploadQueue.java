@@ -0,0 +1,151 @@
+package com.stdiscm.producer;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Files waiting to be uploaded, shared by all upload workers. Each directory has its own queue and
+// batches are taken round-robin across them, so one busy directory cannot starve the others.
+// A file stays tracked from the moment it is added until it is released, so it is never handed to
+// two workers at once. Files the journal marks as processed are not queued at all.
+public class UploadQueue {
+    private final Map<String, Deque<File>> directories = new LinkedHashMap<>();
+    private final List<Deferred> deferred = new ArrayList<>();
+    private final Set<String> tracked = new HashSet<>();    // Queued, deferred or being uploaded
+    private final Map<String, Integer> backoffs = new HashMap<>();   // Retries in a row, per path
+    private final UploadJournal journal;
+    private int nextDirectory;
+
+    public UploadQueue(UploadJournal journal) {
+        this.journal = journal;
+    }
+
+    public synchronized boolean add(File file) {
+        String path = file.getAbsolutePath();
+        if (journal.isProcessed(file) || !tracked.add(path)) {
+            return false;
+        }
+        enqueue(file, false);
+        notifyAll();
+        return true;
+    }
+
+    // Waits up to timeoutMillis for work and takes up to maxFiles, one directory at a time
+    public synchronized List<File> takeBatch(int maxFiles, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            long now = System.currentTimeMillis();
+            long nextDue = promoteDeferred(now);
+
+            List<File> batch = takeRoundRobin(maxFiles);
+            if (!batch.isEmpty() || now >= deadline) {
+                return batch;
+            }
+            wait(Math.max(1, Math.min(deadline, nextDue) - now));
+        }
+    }
+
+    // Records that the file was uploaded, is on the consumer already or was rejected as invalid
+    public void markProcessed(File file, UploadJournal.Outcome outcome) {
+        journal.recordOutcome(file, outcome);
+    }
+
+    // Hands a taken file back: processed files are forgotten, others are queued again once the
+    // delay has passed (right away, at the front of their directory, for a zero delay)
+    public synchronized void release(File file, long delayMillis) {
+        String path = file.getAbsolutePath();
+        backoffs.remove(path);
+        if (journal.isProcessed(file) || !file.isFile()) {
+            tracked.remove(path);
+        } else if (delayMillis <= 0) {
+            enqueue(file, true);
+            notifyAll();
+        } else {
+            deferred.add(new Deferred(file, System.currentTimeMillis() + delayMillis));
+            notifyAll();
+        }
+    }
+
+    // Hands back a file whose outcome is still open on the consumer's side. The delay doubles with
+    // each retry in a row, up to maxDelayMillis, so a file that stays unresolved for a long time is
+    // asked about less and less often.
+    public synchronized void releaseWithBackoff(File file, long delayMillis, long maxDelayMillis) {
+        String path = file.getAbsolutePath();
+        int retries = backoffs.getOrDefault(path, 0);
+        long delay = Math.min(maxDelayMillis, delayMillis << Math.min(retries, 20));
+        release(file, delay);
+        if (tracked.contains(path)) {
+            backoffs.put(path, retries + 1);
+        }
+    }
+
+    public synchronized int size() {
+        int size = deferred.size();
+        for (Deque<File> files : directories.values()) {
+            size += files.size();
+        }
+        return size;
+    }
+
+    private void enqueue(File file, boolean front) {
+        Deque<File> files = directories.computeIfAbsent(file.getAbsoluteFile().getParent(), d -> new ArrayDeque<>());
+        if (front) {
+            files.addFirst(file);
+        } else {
+            files.addLast(file);
+        }
+    }
+
+    // Moves deferred files whose time has come back into their directory queues and returns when
+    // the next one is due
+    private long promoteDeferred(long now) {
+        long nextDue = Long.MAX_VALUE;
+        Iterator<Deferred> it = deferred.iterator();
+        while (it.hasNext()) {
+            Deferred entry = it.next();
+            if (entry.dueAt <= now) {
+                enqueue(entry.file, false);
+                it.remove();
+            } else {
+                nextDue = Math.min(nextDue, entry.dueAt);
+            }
+        }
+        return nextDue;
+    }
+
+    private List<File> takeRoundRobin(int maxFiles) {
+        List<File> batch = new ArrayList<>();
+        List<Deque<File>> queues = new ArrayList<>(directories.values());
+        int emptyInARow = 0;
+        while (batch.size() < maxFiles && emptyInARow < queues.size()) {
+            Deque<File> files = queues.get(nextDirectory % queues.size());
+            nextDirectory = (nextDirectory + 1) % queues.size();
+            File file = files.pollFirst();
+            if (file == null) {
+                emptyInARow++;
+            } else {
+                batch.add(file);
+                emptyInARow = 0;
+            }
+        }
+        return batch;
+    }
+
+    private static class Deferred {
+        final File file;
+        final long dueAt;
+
+        Deferred(File file, long dueAt) {
+            this.file = file;
+            this.dueAt = dueAt;
+        }
+    }
+}
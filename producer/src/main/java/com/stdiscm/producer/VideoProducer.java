@@ -1,160 +1,265 @@
 package com.stdiscm.producer;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.Socket;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+// An upload worker. Workers are not tied to a directory: each one takes batches from the shared
+// upload queue and sends them over its own persistent connection, so a single busy directory can
+// keep every worker (and connection) occupied.
 public class VideoProducer implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(VideoProducer.class);
-    private static final Set<String> VIDEO_EXTENSIONS = new HashSet<>();
-    
-    static {
-        VIDEO_EXTENSIONS.add("mp4");
-        VIDEO_EXTENSIONS.add("avi");
-        VIDEO_EXTENSIONS.add("mov");
-        VIDEO_EXTENSIONS.add("mkv");
-        VIDEO_EXTENSIONS.add("wmv");
-        VIDEO_EXTENSIONS.add("flv");
-        VIDEO_EXTENSIONS.add("webm");
-    }
+    private static final int PIPELINE_DEPTH = 4;          // Files offered ahead of the one being sent
+    private static final long REPLY_TIMEOUT_SECONDS = 30;
+    private static final int MANIFEST_BATCH_SIZE = 512;
+    private static final int UPLOAD_BATCH_SIZE = 2 * PIPELINE_DEPTH;  // Needed files kept per batch, the rest go back
+    private static final long RETRY_MILLIS = 5000;           // Delay before offering deferred files again
+    private static final long MAX_BACKOFF_MILLIS = 60000;    // Longest delay for files in progress elsewhere
+    private static final long TAKE_TIMEOUT_MILLIS = 1000;
     
     private final int id;
-    private final String directoryPath;
+    private final UploadQueue uploadQueue;
+    private final ByteBudget byteBudget;
+    private final ContentHashCache hashCache;
     private final String consumerHost;
     private final int consumerPort;
     private final AtomicBoolean running = new AtomicBoolean(true);
+    private UploadConnection connection;
     
-    public VideoProducer(int id, String directoryPath, String consumerHost, int consumerPort) {
+    public VideoProducer(int id, UploadQueue uploadQueue, ByteBudget byteBudget, ContentHashCache hashCache,
+                         String consumerHost, int consumerPort) {
         this.id = id;
-        this.directoryPath = directoryPath;
+        this.uploadQueue = uploadQueue;
+        this.byteBudget = byteBudget;
+        this.hashCache = hashCache;
         this.consumerHost = consumerHost;
         this.consumerPort = consumerPort;
     }
     
     @Override
     public void run() {
-        logger.info("Producer {} started - monitoring directory: {}", id, directoryPath);
+        logger.info("Producer {} started", id);
         
-        Path directory = Paths.get(directoryPath);
-        if (!Files.exists(directory) || !Files.isDirectory(directory)) {
-            logger.error("Producer {} - Directory does not exist: {}", id, directoryPath);
-            return;
-        }
-        
-        Set<String> processedFiles = new HashSet<>();
-        
-        while (running.get()) {
-            try {
-                File[] files = new File(directoryPath).listFiles();
-                if (files != null) {
-                    for (File file : files) {
-                        if (file.isFile() && isVideoFile(file) && !processedFiles.contains(file.getName())) {
-                            // Process the file
-                            if (uploadVideo(file)) {
-                                processedFiles.add(file.getName());
-                                logger.info("Producer {} - Successfully uploaded: {}", id, file.getName());
-                            }
-                        }
+        try {
+            while (running.get()) {
+                try {
+                    List<File> batch = uploadQueue.takeBatch(MANIFEST_BATCH_SIZE, TAKE_TIMEOUT_MILLIS);
+                    if (!batch.isEmpty()) {
+                        uploadVideos(batch);
                     }
+                } catch (InterruptedException e) {
+                    logger.warn("Producer {} was interrupted", id);
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    logger.error("Producer {} encountered an error", id, e);
                 }
-                
-                // Sleep before checking for new files
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
-                logger.warn("Producer {} was interrupted", id);
-                Thread.currentThread().interrupt();
-                break;
-            } catch (Exception e) {
-                logger.error("Producer {} encountered an error", id, e);
             }
+        } finally {
+            closeConnection();
         }
         
         logger.info("Producer {} stopped", id);
     }
     
-    private boolean isVideoFile(File file) {
-        String extension = FilenameUtils.getExtension(file.getName()).toLowerCase();
-        return VIDEO_EXTENSIONS.contains(extension);
+    // Uploads a batch over the persistent connection. Files are first announced in a manifest, so
+    // the consumer can weed out duplicates and say how many uploads it can take in one round trip.
+    // Every file taken from the queue is handed back at the end: needed files this worker did not
+    // get to right away for another worker, and everything else that was not processed for a retry.
+    private void uploadVideos(List<File> batch) throws InterruptedException {
+        Set<File> returnNow = new HashSet<>();
+        Set<File> inProgress = new HashSet<>();
+        try {
+            UploadConnection connection = getConnection();
+            List<File> wanted = negotiateManifest(connection, batch, inProgress);
+            if (wanted.size() > UPLOAD_BATCH_SIZE) {
+                returnNow.addAll(wanted.subList(UPLOAD_BATCH_SIZE, wanted.size()));
+                wanted = wanted.subList(0, UPLOAD_BATCH_SIZE);
+            }
+            if (!wanted.isEmpty()) {
+                uploadBatch(connection, wanted);
+            }
+        } catch (IOException e) {
+            logger.error("Producer {} - Error uploading files", id, e);
+            closeConnection();
+        } finally {
+            for (File file : batch) {
+                if (inProgress.contains(file)) {
+                    uploadQueue.releaseWithBackoff(file, RETRY_MILLIS, MAX_BACKOFF_MILLIS);
+                } else {
+                    uploadQueue.release(file, returnNow.contains(file) ? 0 : RETRY_MILLIS);
+                }
+            }
+        }
     }
     
-    private boolean uploadVideo(File videoFile) {
-        try (Socket socket = new Socket(consumerHost, consumerPort)) {
-            // Set socket timeout
-            socket.setSoTimeout(30000);  // 30 seconds timeout
-            
-            // Get file data
-            byte[] fileData = FileUtils.readFileToByteArray(videoFile);
-            String fileName = videoFile.getName();
-            String fileHash = calculateMD5(videoFile);
-            
-            // Prepare output stream
-            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-            DataInputStream dis = new DataInputStream(socket.getInputStream());
-            
-            // Send file metadata
-            dos.writeUTF(fileName);
-            dos.writeUTF(fileHash);
-            dos.writeLong(fileData.length);
-            
-            // Check if consumer accepts the file (queue might be full)
-            boolean accepted = dis.readBoolean();
-            if (!accepted) {
-                logger.warn("Producer {} - Upload rejected (queue full): {}", id, fileName);
-                return false;
+    // Returns the files the consumer needs and can take right now; the rest are retried later, and
+    // those being uploaded on another connection are added to inProgress
+    private List<File> negotiateManifest(UploadConnection connection, List<File> videoFiles, Set<File> inProgress)
+            throws IOException, InterruptedException {
+        List<File> offered = new ArrayList<>();
+        List<String> hashes = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        for (File videoFile : videoFiles) {
+            String fileHash = hashCache.getHash(videoFile);
+            if (!fileHash.isEmpty()) {
+                offered.add(videoFile);
+                hashes.add(fileHash);
+                sizes.add(videoFile.length());
             }
-            
-            // Send the file data
-            dos.write(fileData);
-            dos.flush();
-            
-            // Check upload success
-            boolean success = dis.readBoolean();
-            
-            return success;
-        } catch (IOException e) {
-            logger.error("Producer {} - Error uploading file: {}", id, videoFile.getName(), e);
-            return false;
         }
+        if (offered.isEmpty()) {
+            return offered;
+        }
+        
+        ManifestReply reply = connection.exchangeManifest(hashes, sizes, REPLY_TIMEOUT_SECONDS);
+        
+        List<File> wanted = new ArrayList<>();
+        Set<String> wantedHashes = new HashSet<>();
+        for (int i = 0; i < reply.size(); i++) {
+            File videoFile = offered.get(i);
+            switch (reply.getStatus(i)) {
+                case UploadProtocol.MANIFEST_NEEDED:
+                    // Copies of the same content are retried later, where they show up as duplicates
+                    if (wantedHashes.add(hashes.get(i))) {
+                        wanted.add(videoFile);
+                    }
+                    break;
+                case UploadProtocol.MANIFEST_DUPLICATE:
+                    // The consumer already has this content, so there is no point in offering it again
+                    uploadQueue.markProcessed(videoFile, UploadJournal.Outcome.DUPLICATE);
+                    logger.info("Producer {} - Consumer already has: {}", id, videoFile.getName());
+                    break;
+                case UploadProtocol.MANIFEST_IN_PROGRESS:
+                    logger.info("Producer {} - Already being uploaded elsewhere: {}", id, videoFile.getName());
+                    inProgress.add(videoFile);
+                    break;
+                default:
+                    // Offering the same bytes again gets the same answer; a changed file is offered anew
+                    uploadQueue.markProcessed(videoFile, UploadJournal.Outcome.INVALID);
+                    logger.warn("Producer {} - Consumer considers invalid: {}", id, videoFile.getName());
+            }
+        }
+        
+        if (wanted.size() > reply.getAcceptable()) {
+            logger.warn("Producer {} - Consumer can take {} of {} files now (queue full), deferring the rest",
+                    id, reply.getAcceptable(), wanted.size());
+            return new ArrayList<>(wanted.subList(0, reply.getAcceptable()));
+        }
+        return wanted;
     }
     
-    private String calculateMD5(File file) {
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file))) {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] buffer = new byte[8192];
-            int read;
-            while ((read = bis.read(buffer)) != -1) {
-                md.update(buffer, 0, read);
+    // Up to PIPELINE_DEPTH files are offered ahead, so the consumer's answer for the next file is
+    // usually in by the time the current one has been sent, and acknowledgements are collected at
+    // the end rather than after every file
+    private void uploadBatch(UploadConnection connection, List<File> videoFiles)
+            throws IOException, InterruptedException {
+        Iterator<File> remaining = videoFiles.iterator();
+        Deque<InFlightUpload> offered = new ArrayDeque<>();
+        List<InFlightUpload> sent = new ArrayList<>();
+        
+        while (offered.size() < PIPELINE_DEPTH && remaining.hasNext()) {
+            offerVideo(connection, remaining.next(), offered);
+        }
+        
+        while (!offered.isEmpty()) {
+            InFlightUpload next = offered.poll();
+            if (sendIfAccepted(connection, next)) {
+                sent.add(next);
             }
-            byte[] digest = md.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b));
+            while (offered.size() < PIPELINE_DEPTH && remaining.hasNext()) {
+                offerVideo(connection, remaining.next(), offered);
             }
-            return sb.toString();
-        } catch (IOException | NoSuchAlgorithmException e) {
-            logger.error("Error calculating MD5 for file: {}", file.getName(), e);
-            return "";
+        }
+        
+        // Check upload success
+        for (InFlightUpload upload : sent) {
+            String fileName = upload.file.getName();
+            if (upload.pending.awaitResult(REPLY_TIMEOUT_SECONDS)) {
+                uploadQueue.markProcessed(upload.file, UploadJournal.Outcome.UPLOADED);
+                logger.info("Producer {} - Successfully uploaded: {}", id, fileName);
+            } else {
+                logger.warn("Producer {} - Consumer could not queue: {}", id, fileName);
+            }
+        }
+    }
+    
+    private void offerVideo(UploadConnection connection, File videoFile, Deque<InFlightUpload> offered)
+            throws IOException {
+        String fileHash = hashCache.getHash(videoFile);
+        if (fileHash.isEmpty()) {
+            return;
+        }
+        PendingUpload pending = connection.begin(videoFile.getName(), fileHash, videoFile.length());
+        offered.add(new InFlightUpload(videoFile, pending));
+    }
+    
+    private boolean sendIfAccepted(UploadConnection connection, InFlightUpload upload)
+            throws IOException, InterruptedException {
+        String fileName = upload.file.getName();
+        
+        // Check if consumer accepts the file (queue might be full)
+        PendingUpload.Decision decision = upload.pending.awaitDecision(REPLY_TIMEOUT_SECONDS);
+        switch (decision) {
+            case ACCEPTED:
+                // The bytes count against the shared budget until the consumer has answered for them,
+                // which the reader thread handles, so a worker waiting here never holds up a release
+                long reserved = byteBudget.acquire(upload.pending.getFileSize() - upload.pending.getResumeOffset());
+                upload.pending.whenFinished(() -> byteBudget.release(reserved));
+                connection.sendFile(upload.pending, upload.file);
+                return true;
+            case DUPLICATE:
+                // The consumer already has this content, so there is no point in offering it again
+                uploadQueue.markProcessed(upload.file, UploadJournal.Outcome.DUPLICATE);
+                logger.info("Producer {} - Consumer already has: {}", id, fileName);
+                return false;
+            case QUEUE_FULL:
+            case BUSY:
+                logger.warn("Producer {} - Upload rejected (queue full): {}", id, fileName);
+                return false;
+            default:
+                uploadQueue.markProcessed(upload.file, UploadJournal.Outcome.INVALID);
+                logger.warn("Producer {} - Upload rejected as invalid: {}", id, fileName);
+                return false;
+        }
+    }
+    
+    private UploadConnection getConnection() throws IOException {
+        if (connection == null || !connection.isOpen()) {
+            connection = new UploadConnection(consumerHost, consumerPort);
+            logger.info("Producer {} - Connected to consumer at {}:{}", id, consumerHost, consumerPort);
+        }
+        return connection;
+    }
+    
+    private void closeConnection() {
+        if (connection != null) {
+            connection.close();
+            connection = null;
         }
     }
     
     public void stop() {
         running.set(false);
     }
+    
+    private static class InFlightUpload {
+        final File file;
+        final PendingUpload pending;
+        
+        InFlightUpload(File file, PendingUpload pending) {
+            this.file = file;
+            this.pending = pending;
+        }
+    }
 }